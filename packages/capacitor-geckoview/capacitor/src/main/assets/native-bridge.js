@@ -390,6 +390,8 @@ const nativeBridge = (function (exports) {
                                 method: (options === null || options === void 0 ? void 0 : options.method) ? options.method : undefined,
                                 data: (options === null || options === void 0 ? void 0 : options.body) ? options.body : undefined,
                                 headers: (options === null || options === void 0 ? void 0 : options.headers) ? options.headers : undefined,
+                                // the Response below parses JSON bodies itself, so skip parsing natively
+                                jsonMode: 'raw',
                             });
                             const data = typeof nativeResponse.data === 'string'
                                 ? nativeResponse.data
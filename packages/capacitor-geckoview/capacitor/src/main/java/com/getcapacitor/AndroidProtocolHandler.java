@@ -9,23 +9,123 @@ import android.content.res.AssetManager;
 import android.net.Uri;
 import android.util.TypedValue;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class AndroidProtocolHandler {
 
+    // Opens requested with the async methods, the synchronous ones open on the calling
+    // thread so loader threads open in parallel as they always did
+    private static final int OPEN_THREADS = 4;
+
+    private static final ExecutorService openExecutor = createOpenExecutor();
+
+    // R$type classes and resolved resource ids, keyed by "type/name"
+    private static final Map<String, Class<?>> resourceClasses = new ConcurrentHashMap<>();
+    private static final Map<String, Integer> resourceIds = new ConcurrentHashMap<>();
+
     private Context context;
+    private final FileHandleCache fileHandles = new FileHandleCache();
 
     public AndroidProtocolHandler(Context context) {
         this.context = context;
     }
 
+    private static ExecutorService createOpenExecutor() {
+        final AtomicInteger count = new AtomicInteger();
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(
+            OPEN_THREADS,
+            OPEN_THREADS,
+            30,
+            TimeUnit.SECONDS,
+            new LinkedBlockingQueue<>(),
+            runnable -> {
+                Thread thread = new Thread(runnable, "CapacitorOpen-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        );
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    /**
+     * A stream being opened. If it's cancelled before it's open, the stream is closed
+     * as soon as the open completes, so abandoned opens don't leak.
+     */
+    private static class OpenTask extends FutureTask<InputStream> {
+
+        OpenTask(Callable<InputStream> callable) {
+            super(callable);
+        }
+
+        @Override
+        protected void set(InputStream stream) {
+            super.set(stream);
+            if (isCancelled() && stream != null) {
+                try {
+                    stream.close();
+                } catch (IOException e) {
+                    // Nothing read from it
+                }
+            }
+        }
+    }
+
+    private static Future<InputStream> submit(Callable<InputStream> open) {
+        OpenTask task = new OpenTask(open);
+        openExecutor.execute(task);
+        return task;
+    }
+
+    /**
+     * Wait for a stream opened by one of the async methods
+     * @throws IOException if the open fails, times out or is interrupted
+     */
+    public static InputStream await(Future<InputStream> future, long timeout, TimeUnit unit) throws IOException {
+        try {
+            return future.get(timeout, unit);
+        } catch (TimeoutException e) {
+            future.cancel(true);
+            throw new IOException("Timed out opening stream");
+        } catch (InterruptedException e) {
+            future.cancel(true);
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            throw new IOException(cause);
+        }
+    }
+
     public InputStream openAsset(String path) throws IOException {
         return context.getAssets().open(path, AssetManager.ACCESS_STREAMING);
     }
 
+    /**
+     * Start opening an asset on a background thread
+     */
+    public Future<InputStream> openAssetAsync(final String path) {
+        return submit(() -> openAsset(path));
+    }
+
     public InputStream openResource(Uri uri) {
         assert uri.getPath() != null;
         // The path must be of the form ".../asset_type/asset_name.ext".
@@ -34,7 +134,10 @@ public class AndroidProtocolHandler {
         String assetName = pathSegments.get(pathSegments.size() - 1);
 
         // Drop the file extension.
-        assetName = assetName.split("\\.")[0];
+        int extension = assetName.indexOf('.');
+        if (extension != -1) {
+            assetName = assetName.substring(0, extension);
+        }
         try {
             // Use the application context for resolving the resource package name so that we do
             // not use the browser's own resources. Note that if 'context' here belongs to the
@@ -58,32 +161,80 @@ public class AndroidProtocolHandler {
 
     private static int getFieldId(Context context, String assetType, String assetName)
         throws ClassNotFoundException, NoSuchFieldException, IllegalAccessException {
-        Class<?> d = context.getClassLoader().loadClass(context.getPackageName() + ".R$" + assetType);
+        String key = assetType + "/" + assetName;
+        Integer fieldId = resourceIds.get(key);
+        if (fieldId != null) {
+            return fieldId;
+        }
+
+        Class<?> d = resourceClasses.get(assetType);
+        if (d == null) {
+            d = context.getClassLoader().loadClass(context.getPackageName() + ".R$" + assetType);
+            resourceClasses.put(assetType, d);
+        }
         java.lang.reflect.Field field = d.getField(assetName);
-        return field.getInt(null);
+        fieldId = field.getInt(null);
+        resourceIds.put(key, fieldId);
+        return fieldId;
     }
 
+    /**
+     * Open a local file. Files are read through open handles kept for the files served
+     * most recently, so files requested again aren't opened again.
+     */
     public InputStream openFile(String filePath) throws IOException {
-        String realPath = filePath.replace(Bridge.CAPACITOR_FILE_START, "");
-        File localFile = new File(realPath);
-        return new FileInputStream(localFile);
+        String realPath = filePath.startsWith(Bridge.CAPACITOR_FILE_START)
+            ? filePath.substring(Bridge.CAPACITOR_FILE_START.length())
+            : filePath;
+        return fileHandles.open(new File(realPath));
     }
 
-    public InputStream openContentUrl(Uri uri) throws IOException {
-        Integer port = uri.getPort();
-        String baseUrl = uri.getScheme() + "://" + uri.getHost();
-        if (port != -1) {
-            baseUrl += ":" + port;
-        }
-        String realPath = uri.toString().replace(baseUrl + Bridge.CAPACITOR_CONTENT_START, "content:/");
+    /**
+     * Start opening a local file on a background thread
+     */
+    public Future<InputStream> openFileAsync(final String filePath) {
+        return submit(() -> openFile(filePath));
+    }
 
-        InputStream stream = null;
+    public InputStream openContentUrl(Uri uri) throws IOException {
         try {
-            stream = context.getContentResolver().openInputStream(Uri.parse(realPath));
+            return context.getContentResolver().openInputStream(toContentUri(uri));
         } catch (SecurityException e) {
             Logger.error("Unable to open content URL: " + uri, e);
+            return null;
         }
-        return stream;
+    }
+
+    /**
+     * Start opening a content URL on a background thread, for callers that can do
+     * other work while a slow provider opens it
+     */
+    public Future<InputStream> openContentUrlAsync(final Uri uri) {
+        return submit(() -> openContentUrl(uri));
+    }
+
+    private static Uri toContentUri(Uri uri) {
+        // The path is "/_capacitor_content_/authority/path", the content URI is "content://authority/path"
+        String path = uri.getEncodedPath();
+        if (path != null && path.startsWith(Bridge.CAPACITOR_CONTENT_START)) {
+            path = path.substring(Bridge.CAPACITOR_CONTENT_START.length());
+        }
+        StringBuilder contentUrl = new StringBuilder("content:/");
+        if (path != null) {
+            contentUrl.append(path);
+        }
+        String query = uri.getEncodedQuery();
+        if (query != null) {
+            contentUrl.append('?').append(query);
+        }
+        return Uri.parse(contentUrl.toString());
+    }
+
+    /**
+     * Close the file handles kept open for files served recently
+     */
+    public void closeFileHandles() {
+        fileHandles.clear();
     }
 
     private static int getValueType(Context context, int fieldId) {
@@ -168,6 +168,7 @@ public class Bridge implements IPostMessage {
     private ServerPath serverPath;
 
     private WebExtensionPortProxy webExtensionPortProxy;
+    private GeckoRuntime geckoRuntime;
     public final MockCordovaInterfaceImpl cordovaInterface;
     private WebviewExtension webviewExtension;
     private final static String BUILD_INSTALL = "resource://android/assets/";
@@ -1647,6 +1648,7 @@ public class Bridge implements IPostMessage {
             mockWebView.setProxy(webExtensionProxy);
             mockWebView.setHttpServer(bridge.server);
             bridge.setWebExtensionPortProxy(webExtensionProxy);
+            bridge.setGeckoRuntime(sRuntime);
 
             return bridge;
         }
@@ -1657,6 +1659,14 @@ public class Bridge implements IPostMessage {
         this.msgHandler.postMessage(message.toString());
     }
 
+    public void setGeckoRuntime(GeckoRuntime runtime) {
+        this.geckoRuntime = runtime;
+    }
+
+    public GeckoRuntime getGeckoRuntime() {
+        return this.geckoRuntime;
+    }
+
     public void setWebExtensionPortProxy(WebExtensionPortProxy proxy) {
         this.webExtensionPortProxy = proxy;
     }
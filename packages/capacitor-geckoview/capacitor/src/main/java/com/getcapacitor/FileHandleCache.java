@@ -0,0 +1,245 @@
+package com.getcapacitor;
+
+import android.system.ErrnoException;
+import android.system.Os;
+import android.system.StructStat;
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Keeps the most recently served local files open, so a file requested again is read
+ * from the descriptor already open instead of being opened again.
+ * <p>
+ * Streams read the shared descriptor with pread, so any number of them can read the same
+ * file at once. Unlike a FileChannel, an interrupted reader can't close the descriptor
+ * for the others. A cached descriptor is only reused while the path still names the
+ * file it was opened on (same device and inode, so a file replaced by a rename isn't read
+ * through the descriptor of the file it replaced) with the same length and modification time.
+ * Descriptors are closed once evicted and no longer read.
+ */
+class FileHandleCache {
+
+    private static final int MAX_HANDLES = 16;
+
+    private static final class Handle {
+
+        final RandomAccessFile file;
+        final FileDescriptor fd;
+        final long device;
+        final long inode;
+        final long length;
+        final long lastModified;
+        int references = 0;
+        boolean evicted = false;
+
+        Handle(RandomAccessFile file, StructStat stat, long length, long lastModified) throws IOException {
+            this.file = file;
+            this.fd = file.getFD();
+            this.device = stat.st_dev;
+            this.inode = stat.st_ino;
+            this.length = length;
+            this.lastModified = lastModified;
+        }
+
+        boolean isFile(StructStat stat, long length, long lastModified) {
+            return fd.valid() && device == stat.st_dev && inode == stat.st_ino && this.length == length && this.lastModified == lastModified;
+        }
+    }
+
+    private final Map<String, Handle> handles = new LinkedHashMap<String, Handle>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Handle> eldest) {
+            if (size() > MAX_HANDLES) {
+                evict(eldest.getValue());
+                return true;
+            }
+            return false;
+        }
+    };
+
+    /**
+     * Open a stream reading the given file from its start
+     * @throws FileNotFoundException if the file doesn't exist or is not a file
+     */
+    InputStream open(File file) throws IOException {
+        String path = file.getPath();
+        StructStat stat = stat(path);
+        long length = file.length();
+        long lastModified = file.lastModified();
+
+        synchronized (handles) {
+            Handle handle = handles.get(path);
+            if (handle != null) {
+                if (stat != null && handle.isFile(stat, length, lastModified)) {
+                    handle.references++;
+                    return new HandleInputStream(handle);
+                }
+                // Written, replaced or removed since it was opened
+                handles.remove(path);
+                evict(handle);
+            }
+        }
+
+        if (stat == null || !file.isFile()) {
+            throw new FileNotFoundException(path);
+        }
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+        Handle handle;
+        try {
+            // The identity of the file actually opened, which may differ from the one stat'ed
+            handle = new Handle(randomAccessFile, Os.fstat(randomAccessFile.getFD()), randomAccessFile.length(), lastModified);
+        } catch (ErrnoException | IOException e) {
+            randomAccessFile.close();
+            throw new IOException(e);
+        }
+
+        synchronized (handles) {
+            handle.references++;
+            Handle previous = handles.put(path, handle);
+            if (previous != null && previous != handle) {
+                evict(previous);
+            }
+        }
+        return new HandleInputStream(handle);
+    }
+
+    /**
+     * Close all cached descriptors not being read, the others are closed once read
+     */
+    void clear() {
+        synchronized (handles) {
+            for (Handle handle : handles.values()) {
+                evict(handle);
+            }
+            handles.clear();
+        }
+    }
+
+    private static StructStat stat(String path) {
+        try {
+            return Os.stat(path);
+        } catch (ErrnoException e) {
+            return null;
+        }
+    }
+
+    // Called with the handles lock held
+    private void evict(Handle handle) {
+        handle.evicted = true;
+        if (handle.references == 0) {
+            close(handle);
+        }
+    }
+
+    private void release(Handle handle) {
+        synchronized (handles) {
+            handle.references--;
+            if (handle.evicted && handle.references == 0) {
+                close(handle);
+            }
+        }
+    }
+
+    private static void close(Handle handle) {
+        try {
+            handle.file.close();
+        } catch (IOException e) {
+            Logger.debug("Unable to close file: " + e.getMessage());
+        }
+    }
+
+    /**
+     * A stream over a shared descriptor. Like a FileInputStream, {@link #available()}
+     * returns the number of bytes left in the file.
+     */
+    private final class HandleInputStream extends InputStream {
+
+        private final Handle handle;
+        private long position = 0;
+        private long mark = 0;
+        private boolean closed = false;
+
+        HandleInputStream(Handle handle) {
+            this.handle = handle;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] single = new byte[1];
+            return read(single, 0, 1) == -1 ? -1 : single[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            ensureOpen();
+            if (length == 0) {
+                return 0;
+            }
+            long remaining = handle.length - position;
+            if (remaining <= 0) {
+                return -1;
+            }
+            int count;
+            try {
+                count = Os.pread(handle.fd, buffer, offset, (int) Math.min(length, remaining), position);
+            } catch (ErrnoException e) {
+                throw new IOException(e);
+            }
+            if (count == 0) {
+                // Truncated since it was opened
+                return -1;
+            }
+            position += count;
+            return count;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            ensureOpen();
+            long skipped = Math.max(0, Math.min(n, handle.length - position));
+            position += skipped;
+            return skipped;
+        }
+
+        @Override
+        public int available() throws IOException {
+            ensureOpen();
+            return (int) Math.min(Integer.MAX_VALUE, Math.max(0, handle.length - position));
+        }
+
+        @Override
+        public boolean markSupported() {
+            return true;
+        }
+
+        @Override
+        public synchronized void mark(int readLimit) {
+            mark = position;
+        }
+
+        @Override
+        public synchronized void reset() {
+            position = mark;
+        }
+
+        @Override
+        public void close() {
+            if (!closed) {
+                closed = true;
+                release(handle);
+            }
+        }
+
+        private void ensureOpen() throws IOException {
+            if (closed) {
+                throw new IOException("Stream closed");
+            }
+        }
+    }
+}
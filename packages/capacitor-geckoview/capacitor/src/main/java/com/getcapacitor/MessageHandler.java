@@ -19,6 +19,10 @@ public class MessageHandler {
     private PluginManager cordovaPluginManager;
     private JavaScriptReplyProxy javaScriptReplyProxy;
 
+    // Responses waiting for the next eval on the main thread
+    private final StringBuilder pendingScripts = new StringBuilder();
+    private boolean flushScheduled = false;
+
     public MessageHandler(Bridge bridge, GeckoView webView, PluginManager cordovaPluginManager) {
         this.bridge = bridge;
         this.webView = webView;
@@ -139,9 +143,37 @@ public class MessageHandler {
         }
     }
 
+    /**
+     * Queue a response for the web view. Responses queued before the main thread
+     * gets to run are sent together in a single eval, so bursts of plugin results
+     * and events don't each cost a round trip to the page.
+     * @param data
+     */
     private void legacySendResponseMessage(PluginResult data) {
-        final String runScript = "window.Capacitor.fromNative(" + data.toString() + ")";
-        this.webView.post(()->  this.bridge.getWebExtensionPortProxy().eval(runScript));
+        final String runScript = "try{window.Capacitor.fromNative(" + data.toString() + ")}catch(e){console.error(e)}";
+        synchronized (pendingScripts) {
+            if (pendingScripts.length() > 0) {
+                pendingScripts.append(';');
+            }
+            pendingScripts.append(runScript);
+            if (flushScheduled) {
+                return;
+            }
+            flushScheduled = true;
+        }
+        this.webView.post(this::flushResponseMessages);
+    }
+
+    private void flushResponseMessages() {
+        String runScript;
+        synchronized (pendingScripts) {
+            runScript = pendingScripts.toString();
+            pendingScripts.setLength(0);
+            flushScheduled = false;
+        }
+        if (!runScript.isEmpty()) {
+            this.bridge.getWebExtensionPortProxy().eval(runScript);
+        }
     }
 
     private void callPluginMethod(String callbackId, String pluginId, String methodName, JSObject methodData) {
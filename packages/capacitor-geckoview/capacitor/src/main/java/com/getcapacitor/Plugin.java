@@ -16,6 +16,7 @@ import androidx.appcompat.app.AppCompatActivity;
 import androidx.core.app.ActivityCompat;
 import com.getcapacitor.annotation.ActivityCallback;
 import com.getcapacitor.annotation.CapacitorPlugin;
+import com.getcapacitor.annotation.EventPolicy;
 import com.getcapacitor.annotation.Permission;
 import com.getcapacitor.annotation.PermissionCallback;
 import com.getcapacitor.util.PermissionHelper;
@@ -84,9 +85,13 @@ public class Plugin {
     // no listeners were attached yet. Only stores the last value.
     private final Map<String, JSObject> retainedEventArguments;
 
+    // Pending values of events declared with an EventPolicy, created on first use
+    private final Map<String, PluginEventQueue> eventQueues;
+
     public Plugin() {
         eventListeners = new HashMap<>();
         retainedEventArguments = new HashMap<>();
+        eventQueues = new HashMap<>();
     }
 
     /**
@@ -669,12 +674,59 @@ public class Plugin {
             return;
         }
 
+        PluginEventQueue queue = getEventQueue(eventName);
+        if (queue != null) {
+            queue.offer(data);
+            return;
+        }
+
+        deliverEvent(eventName, data);
+    }
+
+    /**
+     * Resolve all current listeners of the given event with the given data
+     * @param eventName
+     * @param data
+     */
+    private void deliverEvent(String eventName, JSObject data) {
+        List<PluginCall> listeners = eventListeners.get(eventName);
+        if (listeners == null || listeners.isEmpty()) {
+            return;
+        }
+
         CopyOnWriteArrayList<PluginCall> listenersCopy = new CopyOnWriteArrayList(listeners);
         for (PluginCall call : listenersCopy) {
             call.resolve(data);
         }
     }
 
+    /**
+     * Get the queue for an event declared in {@link CapacitorPlugin#eventPolicies()},
+     * or null if the event is delivered immediately
+     * @param eventName
+     */
+    private PluginEventQueue getEventQueue(String eventName) {
+        if (handle == null || handle.getPluginAnnotation() == null) {
+            return null;
+        }
+
+        synchronized (eventQueues) {
+            if (eventQueues.containsKey(eventName)) {
+                return eventQueues.get(eventName);
+            }
+
+            PluginEventQueue queue = null;
+            for (EventPolicy policy : handle.getPluginAnnotation().eventPolicies()) {
+                if (policy.event().equals(eventName)) {
+                    queue = new PluginEventQueue(eventName, policy, this::deliverEvent);
+                    break;
+                }
+            }
+            eventQueues.put(eventName, queue);
+            return queue;
+        }
+    }
+
     /**
      * Notify all listeners that an event occurred
      * This calls {@link Plugin#notifyListeners(String, JSObject, boolean)}
@@ -748,6 +800,13 @@ public class Plugin {
     @PluginMethod(returnType = PluginMethod.RETURN_PROMISE)
     public void removeAllListeners(PluginCall call) {
         eventListeners.clear();
+        synchronized (eventQueues) {
+            for (PluginEventQueue queue : eventQueues.values()) {
+                if (queue != null) {
+                    queue.clear();
+                }
+            }
+        }
         call.resolve();
     }
 
@@ -0,0 +1,100 @@
+package com.getcapacitor;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import com.getcapacitor.annotation.EventPolicy;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * PluginEventQueue holds the pending values of an event that has an
+ * {@link EventPolicy}, and flushes them to the plugin listeners on the
+ * main thread at most once per policy interval.
+ */
+class PluginEventQueue {
+
+    interface Sink {
+        void deliver(String eventName, JSObject data);
+    }
+
+    private final String eventName;
+    private final EventPolicy policy;
+    private final Sink sink;
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private final ArrayDeque<JSObject> pending = new ArrayDeque<>();
+    private final Runnable flushTask = this::flush;
+
+    private long lastFlushTime = 0;
+    private boolean flushScheduled = false;
+
+    PluginEventQueue(String eventName, EventPolicy policy, Sink sink) {
+        this.eventName = eventName;
+        this.policy = policy;
+        this.sink = sink;
+    }
+
+    /**
+     * Add a value for delivery, scheduling a flush if none is pending
+     * @param data
+     */
+    void offer(JSObject data) {
+        synchronized (pending) {
+            if (policy.mode() == EventPolicy.Mode.LATEST) {
+                pending.clear();
+            }
+            pending.add(data);
+
+            if (!flushScheduled) {
+                flushScheduled = true;
+                long delay = Math.max(0, lastFlushTime + policy.interval() - SystemClock.uptimeMillis());
+                handler.postDelayed(flushTask, delay);
+            }
+        }
+    }
+
+    /**
+     * Drop all pending values without delivering them
+     */
+    void clear() {
+        synchronized (pending) {
+            pending.clear();
+            handler.removeCallbacks(flushTask);
+            flushScheduled = false;
+        }
+    }
+
+    private void flush() {
+        List<JSObject> values;
+        synchronized (pending) {
+            lastFlushTime = SystemClock.uptimeMillis();
+
+            int limit = policy.maxBatchSize() > 0 ? Math.min(policy.maxBatchSize(), pending.size()) : pending.size();
+            values = new ArrayList<>(limit);
+            while (values.size() < limit) {
+                values.add(pending.poll());
+            }
+
+            // Anything over the batch size waits for the next interval
+            flushScheduled = !pending.isEmpty();
+            if (flushScheduled) {
+                handler.postDelayed(flushTask, policy.interval());
+            }
+        }
+
+        if (values.isEmpty()) {
+            return;
+        }
+
+        if (policy.mode() == EventPolicy.Mode.BATCH) {
+            JSObject batch = new JSObject();
+            batch.put("events", new JSArray(values));
+            sink.deliver(eventName, batch);
+        } else {
+            for (JSObject value : values) {
+                sink.deliver(eventName, value);
+            }
+        }
+    }
+}
@@ -0,0 +1,94 @@
+package com.getcapacitor;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A bounded, thread-safe memoization of {@link RouteProcessor} results, used by
+ * {@link WebViewLocalServer} so a route is processed once rather than on every request.
+ * Entries are immutable snapshots and can be shared between loader threads.
+ */
+class RouteCache {
+
+    private static final int MAX_ENTRIES = 256;
+
+    /**
+     * An immutable copy of a {@link ProcessedRoute}
+     */
+    static final class Route {
+
+        private final String path;
+        private final boolean isAsset;
+
+        Route(String path, boolean isAsset) {
+            this.path = path;
+            this.isAsset = isAsset;
+        }
+
+        String getPath() {
+            return path;
+        }
+
+        boolean isAsset() {
+            return isAsset;
+        }
+    }
+
+    private final Map<String, Route> entries = new LinkedHashMap<String, Route>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Route> eldest) {
+            return size() > MAX_ENTRIES;
+        }
+    };
+
+    private RouteProcessor processor;
+
+    // Incremented on every invalidation so results computed before it are not stored
+    private int generation = 0;
+
+    /**
+     * Get the processed route for the given paths, calling the processor only on a cache miss
+     * @param processor the route processor of the bridge
+     * @param basePath
+     * @param path
+     */
+    Route process(RouteProcessor processor, String basePath, String path) {
+        String key = basePath + "\n" + path;
+        int currentGeneration;
+        synchronized (entries) {
+            if (processor != this.processor) {
+                invalidate();
+                this.processor = processor;
+            }
+            Route route = entries.get(key);
+            if (route != null) {
+                return route;
+            }
+            currentGeneration = generation;
+        }
+
+        ProcessedRoute processedRoute = processor.process(basePath, path);
+        Route route = new Route(processedRoute.getPath(), processedRoute.isAsset());
+
+        synchronized (entries) {
+            if (currentGeneration == generation) {
+                entries.put(key, route);
+            }
+        }
+        return route;
+    }
+
+    /**
+     * Drop all entries, called when the server paths change
+     */
+    void clear() {
+        synchronized (entries) {
+            invalidate();
+        }
+    }
+
+    private void invalidate() {
+        entries.clear();
+        generation++;
+    }
+}
@@ -18,43 +18,44 @@ package com.getcapacitor;
 
 import android.net.Uri;
 import com.getcapacitor.util.HostMask;
-import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.regex.Pattern;
 
+/**
+ * Matches URIs against registered scheme/authority/path patterns.
+ * <p>
+ * The patterns are kept in an immutable trie that is replaced as a whole on
+ * every {@link #addURI(String, String, String, Object)}, so {@link #match(Uri)}
+ * can run concurrently on any thread without locking.
+ */
 public class UriMatcher {
 
+    private volatile Node root;
+
     /**
      * Creates the root node of the URI tree.
      *
      * @param code the code to match for the root URI
      */
     public UriMatcher(Object code) {
-        mCode = code;
-        mWhich = -1;
-        mChildren = new ArrayList<>();
-        mText = null;
-    }
-
-    private UriMatcher() {
-        mCode = null;
-        mWhich = -1;
-        mChildren = new ArrayList<>();
-        mText = null;
+        root = Node.EMPTY.withCode(code);
     }
 
     /**
      * Add a URI to match, and the code to return when this URI is
      * matched. URI nodes may be exact match string, the token "*"
-     * that matches any text, or the token "#" that matches only
-     * numbers.
+     * that matches any text, or the token "**" that matches the rest
+     * of the path. An authority containing "*" is matched as a {@link HostMask}.
      * <p>
      * Starting from API level {@link android.os.Build.VERSION_CODES#JELLY_BEAN_MR2},
      * this method will accept a leading slash in the path.
      *
      * @param authority the authority to match
      * @param path      the path to match. * may be used as a wild card for
-     *                  any text, and # may be used as a wild card for numbers.
+     *                  any text, and ** may be used as a wild card for the rest of the path.
      * @param code      the code that is returned when a URI is matched
      *                  against the given components. Must be positive.
      */
@@ -74,39 +75,16 @@ public class UriMatcher {
         }
 
         int numTokens = tokens != null ? tokens.length : 0;
-        UriMatcher node = this;
-        for (int i = -2; i < numTokens; i++) {
-            String token;
-            if (i == -2) token = scheme; else if (i == -1) token = authority; else token = tokens[i];
-            ArrayList<UriMatcher> children = node.mChildren;
-            int numChildren = children.size();
-            UriMatcher child;
-            int j;
-            for (j = 0; j < numChildren; j++) {
-                child = children.get(j);
-                if (token.equals(child.mText)) {
-                    node = child;
-                    break;
-                }
-            }
-            if (j == numChildren) {
-                // Child not found, create it
-                child = new UriMatcher();
-                if (i == -1 && token.contains("*")) {
-                    child.mWhich = MASK;
-                } else if (token.equals("**")) {
-                    child.mWhich = REST;
-                } else if (token.equals("*")) {
-                    child.mWhich = TEXT;
-                } else {
-                    child.mWhich = EXACT;
-                }
-                child.mText = token;
-                node.mChildren.add(child);
-                node = child;
-            }
+        String[] allTokens = new String[numTokens + 2];
+        allTokens[0] = scheme;
+        allTokens[1] = authority;
+        if (tokens != null) {
+            System.arraycopy(tokens, 0, allTokens, 2, numTokens);
+        }
+
+        synchronized (this) {
+            root = insert(root, allTokens, 0, code);
         }
-        node.mCode = code;
     }
 
     static final Pattern PATH_SPLIT_PATTERN = Pattern.compile("/");
@@ -119,62 +97,143 @@ public class UriMatcher {
      * or null if there is no matched node.
      */
     public Object match(Uri uri) {
+        final Node root = this.root;
         final List<String> pathSegments = uri.getPathSegments();
         final int li = pathSegments.size();
 
-        UriMatcher node = this;
-
         if (li == 0 && uri.getAuthority() == null) {
-            return this.mCode;
+            return root.code;
         }
 
+        Node node = root;
         for (int i = -2; i < li; i++) {
             String u;
             if (i == -2) u = uri.getScheme(); else if (i == -1) u = uri.getAuthority(); else u = pathSegments.get(i);
-            ArrayList<UriMatcher> list = node.mChildren;
-            if (list == null) {
-                break;
-            }
-            node = null;
-            int lj = list.size();
-            for (int j = 0; j < lj; j++) {
-                UriMatcher n = list.get(j);
-                which_switch:switch (n.mWhich) {
-                    case MASK:
-                        if (HostMask.Parser.parse(n.mText).matches(u)) {
-                            node = n;
-                        }
-                        break;
-                    case EXACT:
-                        if (n.mText.equals(u)) {
-                            node = n;
-                        }
-                        break;
-                    case TEXT:
-                        node = n;
+
+            Node next = node.exactChildren.get(u);
+            if (next == null && u != null) {
+                MaskChild[] maskChildren = node.maskChildren;
+                for (int j = 0; j < maskChildren.length; j++) {
+                    if (maskChildren[j].mask.matches(u)) {
+                        next = maskChildren[j].node;
                         break;
-                    case REST:
-                        return n.mCode;
-                }
-                if (node != null) {
-                    break;
+                    }
                 }
             }
-            if (node == null) {
-                return null;
+            if (next == null) {
+                next = node.textChild;
             }
+            if (next == null) {
+                return node.restChild != null ? node.restChild.code : null;
+            }
+            node = next;
+        }
+
+        return node.code;
+    }
+
+    private static Node insert(Node node, String[] tokens, int index, Object code) {
+        if (index == tokens.length) {
+            return node.withCode(code);
         }
 
-        return node.mCode;
+        String token = tokens[index];
+        Node child;
+        if (index == 1 && token != null && token.contains("*")) {
+            child = insert(node.findMaskChild(token), tokens, index + 1, code);
+            return node.withMaskChild(token, child);
+        } else if ("**".equals(token)) {
+            child = insert(node.restChild != null ? node.restChild : Node.EMPTY, tokens, index + 1, code);
+            return node.withRestChild(child);
+        } else if ("*".equals(token)) {
+            child = insert(node.textChild != null ? node.textChild : Node.EMPTY, tokens, index + 1, code);
+            return node.withTextChild(child);
+        } else {
+            Node exact = node.exactChildren.get(token);
+            child = insert(exact != null ? exact : Node.EMPTY, tokens, index + 1, code);
+            return node.withExactChild(token, child);
+        }
     }
 
-    private static final int EXACT = 0;
-    private static final int TEXT = 1;
-    private static final int REST = 2;
-    private static final int MASK = 3;
+    /**
+     * An authority mask compiled once when it is registered.
+     */
+    private static final class MaskChild {
+
+        final String text;
+        final HostMask mask;
+        final Node node;
 
-    private Object mCode;
-    private int mWhich;
-    private String mText;
-    private ArrayList<UriMatcher> mChildren;
+        MaskChild(String text, HostMask mask, Node node) {
+            this.text = text;
+            this.mask = mask;
+            this.node = node;
+        }
+    }
+
+    /**
+     * An immutable trie node. Every modification returns a copy.
+     */
+    private static final class Node {
+
+        static final Node EMPTY = new Node(null, Collections.emptyMap(), new MaskChild[0], null, null);
+
+        final Object code;
+        final Map<String, Node> exactChildren;
+        final MaskChild[] maskChildren;
+        final Node textChild;
+        final Node restChild;
+
+        Node(Object code, Map<String, Node> exactChildren, MaskChild[] maskChildren, Node textChild, Node restChild) {
+            this.code = code;
+            this.exactChildren = exactChildren;
+            this.maskChildren = maskChildren;
+            this.textChild = textChild;
+            this.restChild = restChild;
+        }
+
+        Node findMaskChild(String text) {
+            for (MaskChild child : maskChildren) {
+                if (child.text.equals(text)) {
+                    return child.node;
+                }
+            }
+            return EMPTY;
+        }
+
+        Node withCode(Object code) {
+            return new Node(code, exactChildren, maskChildren, textChild, restChild);
+        }
+
+        Node withExactChild(String token, Node child) {
+            Map<String, Node> children = new HashMap<>(exactChildren);
+            children.put(token, child);
+            return new Node(code, children, maskChildren, textChild, restChild);
+        }
+
+        Node withMaskChild(String text, Node child) {
+            MaskChild[] children = null;
+            for (int i = 0; i < maskChildren.length; i++) {
+                if (maskChildren[i].text.equals(text)) {
+                    children = maskChildren.clone();
+                    children[i] = new MaskChild(text, maskChildren[i].mask, child);
+                    break;
+                }
+            }
+            if (children == null) {
+                children = new MaskChild[maskChildren.length + 1];
+                System.arraycopy(maskChildren, 0, children, 0, maskChildren.length);
+                children[maskChildren.length] = new MaskChild(text, HostMask.Parser.parse(text), child);
+            }
+            return new Node(code, exactChildren, children, textChild, restChild);
+        }
+
+        Node withTextChild(Node child) {
+            return new Node(code, exactChildren, maskChildren, child, restChild);
+        }
+
+        Node withRestChild(Node child) {
+            return new Node(code, exactChildren, maskChildren, textChild, child);
+        }
+    }
 }
@@ -18,19 +18,21 @@ package com.getcapacitor;
 import android.content.Context;
 import android.net.Uri;
 import android.util.Base64;
-import android.webkit.CookieManager;
 import android.webkit.WebResourceRequest;
 import android.webkit.WebResourceResponse;
+import com.getcapacitor.plugin.util.HttpClient;
+import com.getcapacitor.util.AssetMimeTypes;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.HttpURLConnection;
 import java.net.URL;
-import java.net.URLConnection;
 import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
-import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * Helper class meant to be used with the android.webkit.WebView class to enable hosting assets,
@@ -48,12 +50,18 @@ public class WebViewLocalServer {
 
     private static final String capacitorFileStart = Bridge.CAPACITOR_FILE_START;
     private static final String capacitorContentStart = Bridge.CAPACITOR_CONTENT_START;
-    private String basePath;
+    private volatile String basePath;
 
     private final UriMatcher uriMatcher;
     private final AndroidProtocolHandler protocolHandler;
     private final ArrayList<String> authorities;
-    private boolean isAsset;
+    // Whether the server hosts assets or files, routes may override this per request
+    private volatile boolean isAsset;
+    private final RouteCache routeCache = new RouteCache();
+    // Content encodings of build-time compressed siblings (precompress-web-assets.gradle), in order of preference
+    private static final String[][] PRECOMPRESSED_ENCODINGS = { { "br", ".br" }, { "gzip", ".gz" } };
+    // Compressed sibling paths known not to exist, so they are only looked up once
+    private final Set<String> missingVariants = Collections.newSetFromMap(new ConcurrentHashMap<>());
     // Whether to route all requests to paths without extensions back to `index.html`
     private final boolean html5mode;
     private final JSInjector jsInjector;
@@ -107,6 +115,16 @@ public class WebViewLocalServer {
 
         public abstract InputStream handle(Uri url);
 
+        /**
+         * Open a pre-compressed variant of the file for the given url, stored next to
+         * it with the given extension (for example ".br").
+         *
+         * @return the variant, or null if there is none.
+         */
+        public InputStream handleEncoded(Uri url, String extension) {
+            return null;
+        }
+
         public String getEncoding() {
             return encoding;
         }
@@ -132,6 +150,7 @@ public class WebViewLocalServer {
         uriMatcher = new UriMatcher(null);
         this.html5mode = html5mode;
         this.protocolHandler = new AndroidProtocolHandler(context.getApplicationContext());
+        HttpClient.initialize(context.getApplicationContext(), bridge.getConfig().getPluginConfiguration("CapacitorHttp"));
         this.authorities = authorities;
         this.bridge = bridge;
         this.jsInjector = jsInjector;
@@ -165,10 +184,7 @@ public class WebViewLocalServer {
      */
     public WebResourceResponse shouldInterceptRequest(WebResourceRequest request) {
         Uri loadingUrl = request.getUrl();
-        PathHandler handler;
-        synchronized (uriMatcher) {
-            handler = (PathHandler) uriMatcher.match(request.getUrl());
-        }
+        PathHandler handler = (PathHandler) uriMatcher.match(loadingUrl);
         if (handler == null) {
             return null;
         }
@@ -199,26 +215,36 @@ public class WebViewLocalServer {
         return !(bridge.getServerUrl() == null && !bridge.getAppAllowNavigationMask().matches(loadingUrl.getHost()));
     }
 
+    /**
+     * The headers of a 206 response to the given Range header. The handler's headers are
+     * shared by all of its responses, so they are copied rather than changed.
+     */
+    static Map<String, String> getRangeResponseHeaders(Map<String, String> handlerHeaders, String rangeString, int totalRange) {
+        Map<String, String> responseHeaders = new HashMap<>(handlerHeaders);
+        String[] parts = rangeString.split("=");
+        String[] streamParts = parts[1].split("-");
+        String fromRange = streamParts[0];
+        int range = totalRange - 1;
+        if (streamParts.length > 1) {
+            range = Integer.parseInt(streamParts[1]);
+        }
+        responseHeaders.put("Accept-Ranges", "bytes");
+        responseHeaders.put("Content-Range", "bytes " + fromRange + "-" + range + "/" + totalRange);
+        return responseHeaders;
+    }
+
     private WebResourceResponse handleLocalRequest(WebResourceRequest request, PathHandler handler) {
         String path = request.getUrl().getPath();
 
         if (request.getRequestHeaders().get("Range") != null) {
             InputStream responseStream = new LollipopLazyInputStream(handler, request);
-            String mimeType = getMimeType(path, responseStream);
+            String mimeType = getMimeType(path);
             Map<String, String> tempResponseHeaders = handler.getResponseHeaders();
             int statusCode = 206;
             try {
                 int totalRange = responseStream.available();
                 String rangeString = request.getRequestHeaders().get("Range");
-                String[] parts = rangeString.split("=");
-                String[] streamParts = parts[1].split("-");
-                String fromRange = streamParts[0];
-                int range = totalRange - 1;
-                if (streamParts.length > 1) {
-                    range = Integer.parseInt(streamParts[1]);
-                }
-                tempResponseHeaders.put("Accept-Ranges", "bytes");
-                tempResponseHeaders.put("Content-Range", "bytes " + fromRange + "-" + range + "/" + totalRange);
+                tempResponseHeaders = getRangeResponseHeaders(tempResponseHeaders, rangeString, totalRange);
             } catch (IOException e) {
                 statusCode = 404;
             }
@@ -234,7 +260,7 @@ public class WebViewLocalServer {
 
         if (isLocalFile(request.getUrl()) || isErrorUrl(request.getUrl())) {
             InputStream responseStream = new LollipopLazyInputStream(handler, request);
-            String mimeType = getMimeType(request.getUrl().getPath(), responseStream);
+            String mimeType = getMimeType(path);
             int statusCode = getStatusCode(responseStream, handler.getStatusCode());
             return new WebResourceResponse(
                 mimeType,
@@ -261,10 +287,12 @@ public class WebViewLocalServer {
             InputStream responseStream;
             try {
                 String startPath = this.basePath + "/index.html";
-                if (bridge.getRouteProcessor() != null) {
-                    ProcessedRoute processedRoute = bridge.getRouteProcessor().process(this.basePath, "/index.html");
-                    startPath = processedRoute.getPath();
-                    isAsset = processedRoute.isAsset();
+                boolean isAsset = this.isAsset;
+                RouteProcessor routeProcessor = bridge.getRouteProcessor();
+                if (routeProcessor != null) {
+                    RouteCache.Route route = routeCache.process(routeProcessor, this.basePath, "/index.html");
+                    startPath = route.getPath();
+                    isAsset = route.isAsset();
                 }
 
                 if (isAsset) {
@@ -302,21 +330,31 @@ public class WebViewLocalServer {
         if (periodIndex >= 0) {
             String ext = path.substring(path.lastIndexOf("."));
 
-            InputStream responseStream = new LollipopLazyInputStream(handler, request);
+            String mimeType = getMimeType(path);
+            Map<String, String> responseHeaders = handler.getResponseHeaders();
+            InputStream responseStream = null;
 
             // TODO: Conjure up a bit more subtlety than this
-            if (ext.equals(".html")) {
-                responseStream = jsInjector.getInjectedStream(responseStream);
+            if (!ext.equals(".html") && AssetMimeTypes.isCompressible(mimeType)) {
+                responseHeaders = new HashMap<>(responseHeaders);
+                responseHeaders.put("Vary", "Accept-Encoding");
+                responseStream = openPrecompressed(request, handler, path, responseHeaders);
+            }
+
+            if (responseStream == null) {
+                responseStream = new LollipopLazyInputStream(handler, request);
+                if (ext.equals(".html")) {
+                    responseStream = jsInjector.getInjectedStream(responseStream);
+                }
             }
 
-            String mimeType = getMimeType(path, responseStream);
             int statusCode = getStatusCode(responseStream, handler.getStatusCode());
             return new WebResourceResponse(
                 mimeType,
                 handler.getEncoding(),
                 statusCode,
                 handler.getReasonPhrase(),
-                handler.getResponseHeaders(),
+                responseHeaders,
                 responseStream
             );
         }
@@ -345,29 +383,18 @@ public class WebViewLocalServer {
                     }
                 }
                 if (isHtmlText) {
-                    HttpURLConnection conn = (HttpURLConnection) new URL(url).openConnection();
+                    HttpURLConnection conn = HttpClient.open(new URL(url));
                     for (Map.Entry<String, String> header : headers.entrySet()) {
                         conn.setRequestProperty(header.getKey(), header.getValue());
                     }
-                    String getCookie = CookieManager.getInstance().getCookie(url);
-                    if (getCookie != null) {
-                        conn.setRequestProperty("Cookie", getCookie);
-                    }
                     conn.setRequestMethod(method);
-                    conn.setReadTimeout(30 * 1000);
-                    conn.setConnectTimeout(30 * 1000);
                     if (request.getUrl().getUserInfo() != null) {
                         byte[] userInfoBytes = request.getUrl().getUserInfo().getBytes(StandardCharsets.UTF_8);
                         String base64 = Base64.encodeToString(userInfoBytes, Base64.NO_WRAP);
                         conn.setRequestProperty("Authorization", "Basic " + base64);
                     }
 
-                    List<String> cookies = conn.getHeaderFields().get("Set-Cookie");
-                    if (cookies != null) {
-                        for (String cookie : cookies) {
-                            CookieManager.getInstance().setCookie(url, cookie);
-                        }
-                    }
+                    // Cookies are sent and stored by the default CookieHandler, see CapacitorCookieManager
                     InputStream responseStream = conn.getInputStream();
                     responseStream = jsInjector.getInjectedStream(responseStream);
                     return new WebResourceResponse(
@@ -386,25 +413,70 @@ public class WebViewLocalServer {
         return null;
     }
 
-    private String getMimeType(String path, InputStream stream) {
-        String mimeType = null;
-        try {
-            mimeType = URLConnection.guessContentTypeFromName(path); // Does not recognize *.js
-            if (mimeType != null && path.endsWith(".js") && mimeType.equals("image/x-icon")) {
-                Logger.debug("We shouldn't be here");
+    /**
+     * Open a build-time compressed sibling of the requested file (".br" or ".gz") that the
+     * client accepts, and set its Content-Encoding in the given headers.
+     *
+     * @return the compressed stream, or null if the client accepts no available variant.
+     */
+    private InputStream openPrecompressed(WebResourceRequest request, PathHandler handler, String path, Map<String, String> responseHeaders) {
+        String acceptEncoding = getRequestHeader(request, "Accept-Encoding");
+        if (acceptEncoding == null) {
+            return null;
+        }
+
+        for (String[] encoding : PRECOMPRESSED_ENCODINGS) {
+            String variant = path + encoding[1];
+            if (!acceptsEncoding(acceptEncoding, encoding[0]) || missingVariants.contains(variant)) {
+                continue;
             }
-            if (mimeType == null) {
-                if (path.endsWith(".js") || path.endsWith(".mjs")) {
-                    // Make sure JS files get the proper mimetype to support ES modules
-                    mimeType = "application/javascript";
-                } else if (path.endsWith(".wasm")) {
-                    mimeType = "application/wasm";
-                } else {
-                    mimeType = URLConnection.guessContentTypeFromStream(stream);
+
+            InputStream stream = handler.handleEncoded(request.getUrl(), encoding[1]);
+            if (stream == null) {
+                missingVariants.add(variant);
+                continue;
+            }
+
+            responseHeaders.put("Content-Encoding", encoding[0]);
+            return stream;
+        }
+        return null;
+    }
+
+    private static boolean acceptsEncoding(String acceptEncoding, String encoding) {
+        for (String token : acceptEncoding.split(",")) {
+            String[] parts = token.trim().split(";");
+            if (!parts[0].trim().equalsIgnoreCase(encoding)) {
+                continue;
+            }
+            for (int i = 1; i < parts.length; i++) {
+                String param = parts[i].trim();
+                if (param.startsWith("q=")) {
+                    try {
+                        return Float.parseFloat(param.substring(2)) > 0;
+                    } catch (NumberFormatException e) {
+                        return false;
+                    }
                 }
             }
-        } catch (Exception ex) {
-            Logger.error("Unable to get mime type" + path, ex);
+            return true;
+        }
+        return false;
+    }
+
+    private static String getRequestHeader(WebResourceRequest request, String name) {
+        for (Map.Entry<String, String> header : request.getRequestHeaders().entrySet()) {
+            if (name.equalsIgnoreCase(header.getKey())) {
+                return header.getValue();
+            }
+        }
+        return null;
+    }
+
+    private String getMimeType(String path) {
+        String mimeType = AssetMimeTypes.getMimeType(path);
+        if (mimeType == null) {
+            Logger.debug("Unknown mime type for " + path);
         }
         return mimeType;
     }
@@ -434,9 +506,7 @@ public class WebViewLocalServer {
      * @param handler the handler to use for the uri.
      */
     void register(Uri uri, PathHandler handler) {
-        synchronized (uriMatcher) {
-            uriMatcher.addURI(uri.getScheme(), uri.getAuthority(), uri.getPath(), handler);
-        }
+        uriMatcher.addURI(uri.getScheme(), uri.getAuthority(), uri.getPath(), handler);
     }
 
     /**
@@ -451,6 +521,9 @@ public class WebViewLocalServer {
     public void hostAssets(String assetPath) {
         this.isAsset = true;
         this.basePath = assetPath;
+        routeCache.clear();
+        missingVariants.clear();
+        protocolHandler.closeFileHandles();
         createHostingDetails();
     }
 
@@ -466,6 +539,9 @@ public class WebViewLocalServer {
     public void hostFiles(final String basePath) {
         this.isAsset = false;
         this.basePath = basePath;
+        routeCache.clear();
+        missingVariants.clear();
+        protocolHandler.closeFileHandles();
         createHostingDetails();
     }
 
@@ -479,34 +555,52 @@ public class WebViewLocalServer {
         PathHandler handler = new PathHandler() {
             @Override
             public InputStream handle(Uri url) {
-                InputStream stream = null;
+                try {
+                    return open(url, "");
+                } catch (IOException e) {
+                    Logger.error("Unable to open asset URL: " + url);
+                    return null;
+                }
+            }
+
+            @Override
+            public InputStream handleEncoded(Uri url, String extension) {
+                String path = url.getPath();
+                if (path.startsWith(capacitorContentStart) || path.startsWith(capacitorFileStart)) {
+                    return null;
+                }
+                try {
+                    return open(url, extension);
+                } catch (IOException e) {
+                    return null;
+                }
+            }
+
+            private InputStream open(Uri url, String extension) throws IOException {
+                InputStream stream;
                 String path = url.getPath();
+                boolean isAsset = WebViewLocalServer.this.isAsset;
 
                 // Pass path to routeProcessor if present
                 RouteProcessor routeProcessor = bridge.getRouteProcessor();
                 if (routeProcessor != null) {
-                    ProcessedRoute processedRoute = bridge.getRouteProcessor().process("", path);
-                    path = processedRoute.getPath();
-                    isAsset = processedRoute.isAsset();
+                    RouteCache.Route route = routeCache.process(routeProcessor, "", path);
+                    path = route.getPath();
+                    isAsset = route.isAsset();
                 }
 
-                try {
-                    if (path.startsWith(capacitorContentStart)) {
-                        stream = protocolHandler.openContentUrl(url);
-                    } else if (path.startsWith(capacitorFileStart)) {
-                        stream = protocolHandler.openFile(path);
-                    } else if (!isAsset) {
-                        if (routeProcessor == null) {
-                            path = basePath + url.getPath();
-                        }
-
-                        stream = protocolHandler.openFile(path);
-                    } else {
-                        stream = protocolHandler.openAsset(assetPath + path);
+                if (path.startsWith(capacitorContentStart)) {
+                    stream = protocolHandler.openContentUrl(url);
+                } else if (path.startsWith(capacitorFileStart)) {
+                    stream = protocolHandler.openFile(path);
+                } else if (!isAsset) {
+                    if (routeProcessor == null) {
+                        path = basePath + url.getPath();
                     }
-                } catch (IOException e) {
-                    Logger.error("Unable to open asset URL: " + url);
-                    return null;
+
+                    stream = protocolHandler.openFile(path + extension);
+                } else {
+                    stream = protocolHandler.openAsset(assetPath + path + extension);
                 }
 
                 return stream;
@@ -586,6 +680,14 @@ public class WebViewLocalServer {
             InputStream is = getInputStream();
             return (is != null) ? is.skip(n) : 0;
         }
+
+        @Override
+        public void close() throws IOException {
+            // Only close a stream that was opened, there is nothing to release otherwise
+            if (is != null) {
+                is.close();
+            }
+        }
     }
 
     // For L and above.
@@ -32,4 +32,10 @@ public @interface CapacitorPlugin {
      * easy if the plugin only needs basic permission prompting
      */
     Permission[] permissions() default {};
+
+    /**
+     * Delivery policies for events that may be fired faster than the web view
+     * should receive them, such as broadcasts from system services
+     */
+    EventPolicy[] eventPolicies() default {};
 }
@@ -0,0 +1,54 @@
+package com.getcapacitor.annotation;
+
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+
+/**
+ * Delivery policy for a plugin event, for use with @CapacitorPlugin.
+ *
+ * Events without a policy are delivered to the web view as soon as
+ * {@link com.getcapacitor.Plugin#notifyListeners} is called.
+ */
+@Retention(RetentionPolicy.RUNTIME)
+public @interface EventPolicy {
+    enum Mode {
+        /**
+         * Only the most recent value is delivered, older pending values are dropped.
+         */
+        LATEST,
+
+        /**
+         * Every value is delivered in order, pending values are flushed together.
+         */
+        QUEUE,
+
+        /**
+         * Pending values are delivered as a single payload of the
+         * form {@code { "events": [...] }}.
+         */
+        BATCH
+    }
+
+    /**
+     * The name of the event this policy applies to.
+     */
+    String event();
+
+    /**
+     * How pending values are combined before delivery.
+     */
+    Mode mode() default Mode.LATEST;
+
+    /**
+     * The minimum time between two deliveries of this event, in milliseconds.
+     * The default is roughly one frame.
+     */
+    long interval() default 16;
+
+    /**
+     * The maximum number of values delivered per flush in {@link Mode#QUEUE} and
+     * {@link Mode#BATCH} modes. Values over this limit are kept for the next flush.
+     * Values less than 1 mean no limit.
+     */
+    int maxBatchSize() default 0;
+}
@@ -96,10 +96,22 @@ public class SimpleHttpServer extends NanoHTTPD {
             int length = inputStream.available();
             String mimeType = response.getMimeType();
             result = new FileDownloadResponse(mimeType,inputStream,(long)length);
+            Map<String, String> headers = response.getResponseHeaders();
+            if (headers != null) {
+                for (Map.Entry<String, String> header : headers.entrySet()) {
+                    result.addHeader(header.getKey(), header.getValue());
+                }
+            }
         } catch (IOException e) {
             e.printStackTrace();
             result = newFixedLengthResponse(Response.Status.NOT_FOUND,"text","File not found");
         }
         return result;
     }
+
+    @Override
+    protected boolean useGzipWhenAccepted(Response r) {
+        // Pre-compressed assets already carry their own Content-Encoding
+        return r.getHeader("Content-Encoding") == null && super.useGzipWhenAccepted(r);
+    }
 }
@@ -1,6 +1,7 @@
 package com.getcapacitor.plugin;
 
 import com.getcapacitor.Bridge;
+import java.io.File;
 import java.net.CookieManager;
 import java.net.CookiePolicy;
 import java.net.CookieStore;
@@ -13,10 +14,18 @@ import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.Objects;
+import org.mozilla.geckoview.GeckoRuntime;
+import org.mozilla.geckoview.StorageController;
 
+/**
+ * The cookie handler of the app. Cookies are kept in a {@link CookieJar} rather than
+ * in the webkit cookie store, which GeckoView doesn't use.
+ */
 public class CapacitorCookieManager extends CookieManager {
 
-    private final android.webkit.CookieManager webkitCookieManager;
+    private static final String COOKIES_FILE = "capacitor_cookies.json";
+
+    private final CookieJar cookieJar;
     private final Bridge bridge;
 
     /**
@@ -35,7 +44,7 @@ public class CapacitorCookieManager extends CookieManager {
      */
     public CapacitorCookieManager(CookieStore store, CookiePolicy policy, Bridge bridge) {
         super(store, policy);
-        webkitCookieManager = android.webkit.CookieManager.getInstance();
+        cookieJar = new CookieJar(new File(bridge.getContext().getFilesDir(), COOKIES_FILE));
         this.bridge = bridge;
     }
 
@@ -53,9 +62,24 @@ public class CapacitorCookieManager extends CookieManager {
         return url;
     }
 
-    private String getDomainFromCookieString(String cookie) {
-        String[] domain = cookie.toLowerCase(Locale.ROOT).split("domain=");
-        return getSanitizedDomain(domain.length <= 1 ? null : domain[1].split(";")[0].trim());
+    /**
+     * Parse a url given to the cookie APIs, which may be a bare domain
+     * @return the URI, or null if it has no host
+     */
+    private URI toUri(String url) {
+        if (url == null) {
+            return null;
+        }
+        try {
+            URI uri = new URI(url);
+            if (uri.getHost() == null) {
+                String host = url.startsWith(".") ? url.substring(1) : url;
+                uri = new URI("http://" + host);
+            }
+            return uri.getHost() != null ? uri : null;
+        } catch (Exception ex) {
+            return null;
+        }
     }
 
     /**
@@ -64,7 +88,8 @@ public class CapacitorCookieManager extends CookieManager {
      * @return value the cookies as a string, using the format of the 'Cookie' HTTP request header
      */
     public String getCookieString(String url) {
-        return webkitCookieManager.getCookie(url);
+        URI uri = toUri(url);
+        return uri != null ? cookieJar.getCookieHeader(uri) : null;
     }
 
     /**
@@ -91,22 +116,17 @@ public class CapacitorCookieManager extends CookieManager {
      * @return an {@code HttpCookie} array of non-expired cookies
      */
     public HttpCookie[] getCookies(String url) {
-        try {
-            ArrayList<HttpCookie> cookieList = new ArrayList<>();
-            String cookieString = getCookieString(url);
-            if (cookieString != null) {
-                String[] singleCookie = cookieString.split(";");
-                for (String c : singleCookie) {
-                    HttpCookie parsed = HttpCookie.parse(c).get(0);
-                    parsed.setValue(parsed.getValue());
-                    cookieList.add(parsed);
-                }
-            }
-            HttpCookie[] cookies = new HttpCookie[cookieList.size()];
-            return cookieList.toArray(cookies);
-        } catch (Exception ex) {
+        URI uri = toUri(url);
+        if (uri == null) {
             return new HttpCookie[0];
         }
+
+        ArrayList<HttpCookie> cookieList = new ArrayList<>();
+        for (CookieJar.Cookie cookie : cookieJar.get(uri)) {
+            cookieList.add(new HttpCookie(cookie.name, cookie.value));
+        }
+        HttpCookie[] cookies = new HttpCookie[cookieList.size()];
+        return cookieList.toArray(cookies);
     }
 
     /**
@@ -116,8 +136,10 @@ public class CapacitorCookieManager extends CookieManager {
      * @param value the cookie as a string, using the format of the 'Set-Cookie' HTTP response header
      */
     public void setCookie(String url, String value) {
-        webkitCookieManager.setCookie(url, value);
-        flush();
+        URI uri = toUri(url);
+        if (uri != null) {
+            cookieJar.add(uri, value);
+        }
     }
 
     /**
@@ -138,11 +160,14 @@ public class CapacitorCookieManager extends CookieManager {
     }
 
     /**
-     * Removes all cookies. This method is asynchronous.
+     * Removes all cookies, including the cookies of GeckoView. This method is asynchronous.
      */
     public void removeAllCookies() {
-        webkitCookieManager.removeAllCookies(null);
-        flush();
+        cookieJar.removeAll();
+        GeckoRuntime runtime = bridge.getGeckoRuntime();
+        if (runtime != null) {
+            runtime.getStorageController().clearData(StorageController.ClearFlags.COOKIES);
+        }
     }
 
     /**
@@ -150,7 +175,7 @@ public class CapacitorCookieManager extends CookieManager {
      *  storage. This call will block the caller until it is done and may perform I/O.
      */
     public void flush() {
-        webkitCookieManager.flush();
+        cookieJar.flush();
     }
 
     @Override
@@ -166,10 +191,15 @@ public class CapacitorCookieManager extends CookieManager {
             // process each of the headers
             for (String headerValue : Objects.requireNonNull(responseHeaders.get(headerKey))) {
                 // Set at server url
-                setCookie(uri.toString(), headerValue);
-
-                // Set at local url or domain
-                setCookie(getDomainFromCookieString(headerValue), headerValue);
+                cookieJar.add(uri, headerValue);
+
+                // Host only cookies are also set at the local url, so the page can read them
+                if (!headerValue.toLowerCase(Locale.ROOT).contains("domain=")) {
+                    URI localUri = toUri(getSanitizedDomain(null));
+                    if (localUri != null && !localUri.getHost().equalsIgnoreCase(uri.getHost())) {
+                        cookieJar.add(localUri, headerValue);
+                    }
+                }
             }
         }
     }
@@ -179,14 +209,11 @@ public class CapacitorCookieManager extends CookieManager {
         // make sure our args are valid
         if ((uri == null) || (requestHeaders == null)) throw new IllegalArgumentException("Argument is null");
 
-        // save our url once
-        String url = uri.toString();
-
         // prepare our response
         Map<String, List<String>> res = new HashMap<>();
 
         // get the cookie
-        String cookie = getCookieString(url);
+        String cookie = cookieJar.getCookieHeader(uri);
 
         // return it
         if (cookie != null) res.put("Cookie", Collections.singletonList(cookie));
@@ -147,4 +147,9 @@ public class CapacitorCookies extends Plugin {
         cookieManager.removeAllCookies();
         call.resolve();
     }
+
+    @Override
+    protected void handleOnStop() {
+        cookieManager.flush();
+    }
 }
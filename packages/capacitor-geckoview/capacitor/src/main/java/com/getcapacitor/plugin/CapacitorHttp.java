@@ -2,6 +2,7 @@ package com.getcapacitor.plugin;
 
 import android.Manifest;
 import android.webkit.JavascriptInterface;
+import com.getcapacitor.Bridge;
 import com.getcapacitor.CapConfig;
 import com.getcapacitor.JSObject;
 import com.getcapacitor.Plugin;
@@ -10,7 +11,12 @@ import com.getcapacitor.PluginConfig;
 import com.getcapacitor.PluginMethod;
 import com.getcapacitor.annotation.CapacitorPlugin;
 import com.getcapacitor.annotation.Permission;
+import com.getcapacitor.plugin.util.HttpClient;
+import com.getcapacitor.plugin.util.HttpRequestDispatcher;
 import com.getcapacitor.plugin.util.HttpRequestHandler;
+import java.io.File;
+import java.io.IOException;
+import java.util.UUID;
 
 @CapacitorPlugin(
     permissions = {
@@ -20,26 +26,124 @@ import com.getcapacitor.plugin.util.HttpRequestHandler;
 )
 public class CapacitorHttp extends Plugin {
 
+    // Response bodies streamed for the page to load, removed on the next launch
+    private static final String RESPONSE_CACHE_DIRECTORY = "capacitor_http_responses";
+
+    private HttpRequestDispatcher dispatcher;
+
     @Override
     public void load() {
 //        this.bridge.getWebView().addJavascriptInterface(this, "CapacitorHttpAndroidInterface");
+        PluginConfig pluginConfig = getBridge().getConfig().getPluginConfiguration("CapacitorHttp");
+        HttpClient.initialize(getContext(), pluginConfig);
+
+        dispatcher =
+            new HttpRequestDispatcher(
+                pluginConfig.getInt("maxConcurrentRequests", 8),
+                pluginConfig.getInt("maxConcurrentRequestsPerHost", 4),
+                pluginConfig.getInt("maxQueuedRequests", 256)
+            );
+        clearResponseCacheDir();
         super.load();
     }
 
     private void http(final PluginCall call, final String httpMethod) {
-        Runnable asyncHttpCall = new Runnable() {
-            @Override
-            public void run() {
-                try {
-                    JSObject response = HttpRequestHandler.request(call, httpMethod);
-                    call.resolve(response);
-                } catch (Exception e) {
-                    call.reject(e.getLocalizedMessage(), e.getClass().getSimpleName(), e);
+        HttpRequestHandler.ResponseFile responseFile;
+        try {
+            responseFile = getResponseFile(call);
+        } catch (IllegalArgumentException e) {
+            call.reject(e.getMessage());
+            return;
+        }
+
+        HttpRequestHandler.ProgressEmitter emitter = null;
+        if (call.getBoolean("progress", false)) {
+            final String requestId = call.getString("requestId", call.getCallbackId());
+            emitter =
+                (bytes, contentLength) -> {
+                    JSObject progress = new JSObject();
+                    progress.put("requestId", requestId);
+                    progress.put("bytes", bytes);
+                    progress.put("contentLength", contentLength);
+                    notifyListeners("progress", progress);
+                };
+        }
+
+        dispatcher.enqueue(call, httpMethod, responseFile, emitter);
+    }
+
+    /**
+     * Get the file the response body should be streamed to, from the responseOutput option.
+     * "file" writes to the filePath option, absolute or relative to the app files directory,
+     * which must be in the files, cache or external files directory of the app.
+     * "url" writes to a cache file the page can load from the local server.
+     * @return null when the body should be returned as data
+     * @throws IllegalArgumentException if the options are invalid or the file is elsewhere
+     */
+    private HttpRequestHandler.ResponseFile getResponseFile(PluginCall call) {
+        String responseOutput = call.getString("responseOutput", "data");
+        if ("file".equals(responseOutput)) {
+            String filePath = call.getString("filePath");
+            if (filePath == null) {
+                throw new IllegalArgumentException("Must provide a filePath when responseOutput is file");
+            }
+            if (filePath.startsWith("file://")) {
+                filePath = filePath.substring("file://".length());
+            } else if (filePath.startsWith(Bridge.CAPACITOR_FILE_START)) {
+                filePath = filePath.substring(Bridge.CAPACITOR_FILE_START.length());
+            }
+            File file = new File(filePath);
+            if (!file.isAbsolute()) {
+                file = new File(getContext().getFilesDir(), filePath);
+            }
+            file = getAllowedFile(file);
+            return new HttpRequestHandler.ResponseFile(file, getLocalFileUrl(file));
+        } else if ("url".equals(responseOutput)) {
+            File file = new File(getResponseCacheDir(), UUID.randomUUID().toString());
+            return new HttpRequestHandler.ResponseFile(file, getLocalFileUrl(file));
+        }
+        return null;
+    }
+
+    /**
+     * Resolve a response file, which must be inside a directory the page may write to.
+     * Other files of the app, like its databases and shared preferences, can't be overwritten.
+     * @return the canonical file
+     */
+    private File getAllowedFile(File file) {
+        try {
+            File canonical = file.getCanonicalFile();
+            File[] allowed = {
+                getContext().getFilesDir(),
+                getContext().getCacheDir(),
+                getContext().getExternalFilesDir(null)
+            };
+            for (File directory : allowed) {
+                if (directory != null && canonical.getPath().startsWith(directory.getCanonicalPath() + File.separator)) {
+                    return canonical;
                 }
             }
-        };
-        Thread httpThread = new Thread(asyncHttpCall);
-        httpThread.start();
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Invalid filePath: " + e.getMessage());
+        }
+        throw new IllegalArgumentException("filePath must be in the files, cache or external files directory of the app");
+    }
+
+    private String getLocalFileUrl(File file) {
+        return bridge.getLocalUrl() + Bridge.CAPACITOR_FILE_START + file.getAbsolutePath();
+    }
+
+    private File getResponseCacheDir() {
+        return new File(getContext().getCacheDir(), RESPONSE_CACHE_DIRECTORY);
+    }
+
+    private void clearResponseCacheDir() {
+        File[] files = getResponseCacheDir().listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
     }
 
     @JavascriptInterface
@@ -77,4 +181,40 @@ public class CapacitorHttp extends Plugin {
     public void delete(final PluginCall call) {
         this.http(call, "DELETE");
     }
+
+    @PluginMethod
+    public void cancel(final PluginCall call) {
+        String requestId = call.getString("requestId");
+        if (requestId == null) {
+            call.reject("Must provide a requestId");
+            return;
+        }
+
+        JSObject result = new JSObject();
+        result.put("cancelled", dispatcher.cancel(requestId));
+        call.resolve(result);
+    }
+
+    @PluginMethod
+    public void getRequestCounts(final PluginCall call) {
+        JSObject result = new JSObject();
+        result.put("inFlight", dispatcher.getRunningCount());
+        result.put("queued", dispatcher.getQueuedCount());
+        call.resolve(result);
+    }
+
+    @PluginMethod
+    public void getCacheStats(final PluginCall call) {
+        call.resolve(HttpClient.getCacheStats());
+    }
+
+    @Override
+    protected void handleOnStop() {
+        HttpClient.flush();
+    }
+
+    @Override
+    protected void handleOnDestroy() {
+        dispatcher.cancelAll();
+    }
 }
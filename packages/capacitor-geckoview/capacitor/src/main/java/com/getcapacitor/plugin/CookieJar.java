@@ -0,0 +1,543 @@
+package com.getcapacitor.plugin;
+
+import com.getcapacitor.Logger;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.TimeZone;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * An in-memory cookie store, indexed by domain, following RFC 6265.
+ * <p>
+ * Set-Cookie headers are parsed once when stored, and reading the cookies of a url only
+ * walks the domains of its host. Cookies are expired from a heap ordered by expiry date.
+ * Persistent cookies are written to a file in the background, in batches, so a burst of
+ * Set-Cookie headers costs a single write.
+ */
+class CookieJar {
+
+    private static final long SAVE_DELAY = 1000;
+
+    private static final long SESSION = Long.MAX_VALUE;
+
+    private static final String[] DATE_FORMATS = {
+        "EEE, dd MMM yyyy HH:mm:ss zzz",
+        "EEE, dd-MMM-yyyy HH:mm:ss zzz",
+        "EEE, dd-MMM-yy HH:mm:ss zzz",
+        "EEE MMM d HH:mm:ss yyyy"
+    };
+
+    // Common registry-controlled suffixes of two labels, which no site may set cookies for.
+    // Single label suffixes (com, org, uk...) are rejected without being listed.
+    private static final Set<String> PUBLIC_SUFFIXES = new HashSet<>(
+        Arrays.asList(
+            "co.uk",
+            "org.uk",
+            "ac.uk",
+            "gov.uk",
+            "com.au",
+            "net.au",
+            "org.au",
+            "co.nz",
+            "co.jp",
+            "ne.jp",
+            "co.kr",
+            "co.in",
+            "co.za",
+            "com.br",
+            "com.cn",
+            "com.mx",
+            "com.tr",
+            "com.tw"
+        )
+    );
+
+    static final class Cookie {
+
+        final String name;
+        final String value;
+        final String domain;
+        final String path;
+        final long expiresAt;
+        final boolean hostOnly;
+        final boolean secure;
+        final boolean httpOnly;
+        final long createdAt;
+
+        Cookie(
+            String name,
+            String value,
+            String domain,
+            String path,
+            long expiresAt,
+            boolean hostOnly,
+            boolean secure,
+            boolean httpOnly,
+            long createdAt
+        ) {
+            this.name = name;
+            this.value = value;
+            this.domain = domain;
+            this.path = path;
+            this.expiresAt = expiresAt;
+            this.hostOnly = hostOnly;
+            this.secure = secure;
+            this.httpOnly = httpOnly;
+            this.createdAt = createdAt;
+        }
+
+        boolean isPersistent() {
+            return expiresAt != SESSION;
+        }
+
+        String key() {
+            return name + ";" + path;
+        }
+    }
+
+    // Cookies by domain, then by name and path
+    private final Map<String, Map<String, Cookie>> domains = new HashMap<>();
+    private final PriorityQueue<Cookie> expiries = new PriorityQueue<>(
+        16,
+        (a, b) -> Long.compare(a.expiresAt, b.expiresAt)
+    );
+
+    private final File file;
+    private final ScheduledExecutorService saveExecutor = Executors.newSingleThreadScheduledExecutor(
+        runnable -> new Thread(runnable, "CapacitorCookies-save")
+    );
+    private boolean saveScheduled = false;
+
+    /**
+     * @param file the file persistent cookies are loaded from and saved to
+     */
+    CookieJar(File file) {
+        this.file = file;
+        load();
+    }
+
+    /**
+     * Store a cookie from a Set-Cookie header received from the given url.
+     * An expired cookie removes the cookie it replaces.
+     * @return false if the header is malformed or not allowed for the url
+     */
+    synchronized boolean add(URI uri, String setCookie) {
+        Cookie cookie = parse(uri, setCookie, System.currentTimeMillis());
+        if (cookie == null) {
+            return false;
+        }
+
+        Map<String, Cookie> cookies = domains.get(cookie.domain);
+        Cookie previous = cookies != null ? cookies.get(cookie.key()) : null;
+        boolean expired = cookie.expiresAt <= System.currentTimeMillis();
+
+        // The heap only holds current cookies, so refreshing a cookie doesn't grow it
+        if (previous != null && previous.isPersistent()) {
+            expiries.remove(previous);
+        }
+
+        if (expired) {
+            if (previous != null) {
+                cookies.remove(cookie.key());
+                if (cookies.isEmpty()) {
+                    domains.remove(cookie.domain);
+                }
+            }
+        } else {
+            if (cookies == null) {
+                cookies = new HashMap<>();
+                domains.put(cookie.domain, cookies);
+            }
+            // A replaced cookie keeps its creation time, which orders the Cookie header
+            if (previous != null) {
+                cookie =
+                    new Cookie(
+                        cookie.name,
+                        cookie.value,
+                        cookie.domain,
+                        cookie.path,
+                        cookie.expiresAt,
+                        cookie.hostOnly,
+                        cookie.secure,
+                        cookie.httpOnly,
+                        previous.createdAt
+                    );
+            }
+            cookies.put(cookie.key(), cookie);
+            if (cookie.isPersistent()) {
+                expiries.add(cookie);
+            }
+        }
+
+        if ((previous != null && previous.isPersistent()) || cookie.isPersistent()) {
+            scheduleSave();
+        }
+        return true;
+    }
+
+    /**
+     * Get the cookies to send to the given url, longest paths first
+     */
+    synchronized List<Cookie> get(URI uri) {
+        String host = uri.getHost();
+        if (host == null) {
+            return Collections.emptyList();
+        }
+        host = host.toLowerCase(Locale.ROOT);
+        String path = uri.getPath() == null || uri.getPath().isEmpty() ? "/" : uri.getPath();
+        boolean secure = "https".equalsIgnoreCase(uri.getScheme());
+
+        removeExpired(System.currentTimeMillis());
+
+        List<Cookie> result = new ArrayList<>();
+        // Walk the host and each of its parent domains
+        String domain = host;
+        while (true) {
+            Map<String, Cookie> cookies = domains.get(domain);
+            if (cookies != null) {
+                for (Cookie cookie : cookies.values()) {
+                    if ((!cookie.hostOnly || domain.equals(host)) && (!cookie.secure || secure) && pathMatches(path, cookie.path)) {
+                        result.add(cookie);
+                    }
+                }
+            }
+            int dot = domain.indexOf('.');
+            if (dot < 0) {
+                break;
+            }
+            domain = domain.substring(dot + 1);
+        }
+
+        Collections.sort(
+            result,
+            (a, b) -> {
+                if (a.path.length() != b.path.length()) {
+                    return b.path.length() - a.path.length();
+                }
+                return Long.compare(a.createdAt, b.createdAt);
+            }
+        );
+        return result;
+    }
+
+    /**
+     * Get the value of the Cookie header for the given url, or null if there are no cookies
+     */
+    String getCookieHeader(URI uri) {
+        List<Cookie> cookies = get(uri);
+        if (cookies.isEmpty()) {
+            return null;
+        }
+        StringBuilder header = new StringBuilder();
+        for (Cookie cookie : cookies) {
+            if (header.length() > 0) {
+                header.append("; ");
+            }
+            header.append(cookie.name).append('=').append(cookie.value);
+        }
+        return header.toString();
+    }
+
+    synchronized void removeAll() {
+        domains.clear();
+        expiries.clear();
+        scheduleSave();
+    }
+
+    /**
+     * Write pending changes to disk now
+     */
+    void flush() {
+        synchronized (this) {
+            saveScheduled = false;
+        }
+        save();
+    }
+
+    private void removeExpired(long now) {
+        while (!expiries.isEmpty() && expiries.peek().expiresAt <= now) {
+            Cookie cookie = expiries.poll();
+            Map<String, Cookie> cookies = domains.get(cookie.domain);
+            if (cookies != null && cookies.get(cookie.key()) == cookie) {
+                cookies.remove(cookie.key());
+                if (cookies.isEmpty()) {
+                    domains.remove(cookie.domain);
+                }
+            }
+        }
+    }
+
+    private void scheduleSave() {
+        if (saveScheduled) {
+            return;
+        }
+        saveScheduled = true;
+        saveExecutor.schedule(
+            () -> {
+                synchronized (this) {
+                    if (!saveScheduled) {
+                        return;
+                    }
+                    saveScheduled = false;
+                }
+                save();
+            },
+            SAVE_DELAY,
+            TimeUnit.MILLISECONDS
+        );
+    }
+
+    private void save() {
+        JSONArray json = new JSONArray();
+        synchronized (this) {
+            removeExpired(System.currentTimeMillis());
+            try {
+                for (Map<String, Cookie> cookies : domains.values()) {
+                    for (Cookie cookie : cookies.values()) {
+                        if (cookie.isPersistent()) {
+                            json.put(toJSON(cookie));
+                        }
+                    }
+                }
+            } catch (JSONException e) {
+                Logger.error("Unable to serialize cookies", e);
+                return;
+            }
+        }
+
+        // Write a temporary file first, so a crash never leaves a truncated jar
+        File tempFile = new File(file.getPath() + ".tmp");
+        try (OutputStream out = new FileOutputStream(tempFile)) {
+            out.write(json.toString().getBytes(StandardCharsets.UTF_8));
+        } catch (IOException e) {
+            Logger.error("Unable to save cookies", e);
+            return;
+        }
+        if (!tempFile.renameTo(file)) {
+            Logger.error("Unable to save cookies to " + file);
+        }
+    }
+
+    private synchronized void load() {
+        if (!file.exists()) {
+            return;
+        }
+        try (InputStream in = new FileInputStream(file)) {
+            byte[] bytes = new byte[(int) file.length()];
+            int offset = 0;
+            int read;
+            while (offset < bytes.length && (read = in.read(bytes, offset, bytes.length - offset)) != -1) {
+                offset += read;
+            }
+
+            long now = System.currentTimeMillis();
+            JSONArray json = new JSONArray(new String(bytes, 0, offset, StandardCharsets.UTF_8));
+            for (int i = 0; i < json.length(); i++) {
+                Cookie cookie = fromJSON(json.getJSONObject(i));
+                if (cookie.expiresAt > now) {
+                    Map<String, Cookie> cookies = domains.get(cookie.domain);
+                    if (cookies == null) {
+                        cookies = new HashMap<>();
+                        domains.put(cookie.domain, cookies);
+                    }
+                    cookies.put(cookie.key(), cookie);
+                    expiries.add(cookie);
+                }
+            }
+        } catch (IOException | JSONException e) {
+            Logger.error("Unable to load cookies", e);
+        }
+    }
+
+    private static JSONObject toJSON(Cookie cookie) throws JSONException {
+        JSONObject json = new JSONObject();
+        json.put("name", cookie.name);
+        json.put("value", cookie.value);
+        json.put("domain", cookie.domain);
+        json.put("path", cookie.path);
+        json.put("expiresAt", cookie.expiresAt);
+        json.put("hostOnly", cookie.hostOnly);
+        json.put("secure", cookie.secure);
+        json.put("httpOnly", cookie.httpOnly);
+        json.put("createdAt", cookie.createdAt);
+        return json;
+    }
+
+    private static Cookie fromJSON(JSONObject json) throws JSONException {
+        return new Cookie(
+            json.getString("name"),
+            json.getString("value"),
+            json.getString("domain"),
+            json.getString("path"),
+            json.getLong("expiresAt"),
+            json.getBoolean("hostOnly"),
+            json.getBoolean("secure"),
+            json.getBoolean("httpOnly"),
+            json.getLong("createdAt")
+        );
+    }
+
+    /**
+     * Parse a Set-Cookie header received from the given url
+     * @return the cookie, or null if the header is malformed or its domain doesn't match the url
+     */
+    static Cookie parse(URI uri, String setCookie, long now) {
+        String host = uri.getHost();
+        if (host == null || setCookie == null) {
+            return null;
+        }
+        host = host.toLowerCase(Locale.ROOT);
+
+        String[] parts = setCookie.split(";");
+        int equals = parts[0].indexOf('=');
+        if (equals <= 0) {
+            return null;
+        }
+        String name = parts[0].substring(0, equals).trim();
+        String value = parts[0].substring(equals + 1).trim();
+        if (name.isEmpty()) {
+            return null;
+        }
+
+        String domain = null;
+        String path = null;
+        Long maxAge = null;
+        long expires = SESSION;
+        boolean secure = false;
+        boolean httpOnly = false;
+
+        for (int i = 1; i < parts.length; i++) {
+            String part = parts[i].trim();
+            int separator = part.indexOf('=');
+            String attribute = (separator < 0 ? part : part.substring(0, separator)).trim().toLowerCase(Locale.ROOT);
+            String attributeValue = separator < 0 ? "" : part.substring(separator + 1).trim();
+
+            switch (attribute) {
+                case "domain":
+                    if (!attributeValue.isEmpty()) {
+                        domain = (attributeValue.startsWith(".") ? attributeValue.substring(1) : attributeValue).toLowerCase(Locale.ROOT);
+                    }
+                    break;
+                case "path":
+                    if (attributeValue.startsWith("/")) {
+                        path = attributeValue;
+                    }
+                    break;
+                case "max-age":
+                    try {
+                        maxAge = Long.parseLong(attributeValue);
+                    } catch (NumberFormatException e) {
+                        // Ignored, as browsers do
+                    }
+                    break;
+                case "expires":
+                    expires = parseDate(attributeValue);
+                    break;
+                case "secure":
+                    secure = true;
+                    break;
+                case "httponly":
+                    httpOnly = true;
+                    break;
+                default:
+                    break;
+            }
+        }
+
+        boolean hostOnly = domain == null;
+        if (hostOnly) {
+            domain = host;
+        } else if (!host.equals(domain) && !isDomainOf(host, domain)) {
+            return null;
+        }
+
+        if (path == null) {
+            path = defaultPath(uri.getPath());
+        }
+
+        long expiresAt = expires;
+        if (maxAge != null) {
+            expiresAt = maxAge <= 0 ? Long.MIN_VALUE : now + Math.min(maxAge, (SESSION - now) / 1000 - 1) * 1000;
+        }
+
+        return new Cookie(name, value, domain, path, expiresAt, hostOnly, secure, httpOnly, now);
+    }
+
+    /**
+     * Whether a Domain attribute lets a cookie set by host be sent to the other hosts of
+     * domain (RFC 6265 5.3 step 5). IP addresses have no other hosts and public suffixes
+     * aren't owned by the host.
+     */
+    private static boolean isDomainOf(String host, String domain) {
+        if (!host.endsWith("." + domain) || isIpAddress(host)) {
+            return false;
+        }
+        return domain.indexOf('.') > 0 && !PUBLIC_SUFFIXES.contains(domain);
+    }
+
+    private static boolean isIpAddress(String host) {
+        // URI gives IPv6 hosts in brackets
+        return host.startsWith("[") || host.matches("\\d{1,3}(\\.\\d{1,3}){3}");
+    }
+
+    private static long parseDate(String date) {
+        for (String format : DATE_FORMATS) {
+            SimpleDateFormat dateFormat = new SimpleDateFormat(format, Locale.US);
+            dateFormat.setTimeZone(TimeZone.getTimeZone("GMT"));
+            try {
+                return dateFormat.parse(date).getTime();
+            } catch (ParseException e) {
+                // Try the next format
+            }
+        }
+        // Unreadable dates make a session cookie, as browsers do
+        return SESSION;
+    }
+
+    /**
+     * The default path of a cookie, the directory of the request path (RFC 6265 5.1.4)
+     */
+    private static String defaultPath(String requestPath) {
+        if (requestPath == null || !requestPath.startsWith("/")) {
+            return "/";
+        }
+        int lastSlash = requestPath.lastIndexOf('/');
+        return lastSlash == 0 ? "/" : requestPath.substring(0, lastSlash);
+    }
+
+    /**
+     * Whether a request path matches a cookie path (RFC 6265 5.1.4)
+     */
+    private static boolean pathMatches(String requestPath, String cookiePath) {
+        if (requestPath.equals(cookiePath)) {
+            return true;
+        }
+        return (
+            requestPath.startsWith(cookiePath) &&
+            (cookiePath.endsWith("/") || requestPath.charAt(cookiePath.length()) == '/')
+        );
+    }
+}
@@ -1,15 +1,22 @@
 package com.getcapacitor.plugin.util;
 
+import android.net.Uri;
 import android.os.Build;
 import android.os.LocaleList;
 import android.text.TextUtils;
+import android.util.Base64;
+import com.getcapacitor.Bridge;
 import com.getcapacitor.JSArray;
 import com.getcapacitor.JSObject;
 import com.getcapacitor.JSValue;
 import com.getcapacitor.PluginCall;
 import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.HttpURLConnection;
 import java.net.ProtocolException;
 import java.net.SocketTimeoutException;
@@ -17,14 +24,24 @@ import java.net.URL;
 import java.net.URLEncoder;
 import java.net.UnknownServiceException;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
+import java.util.UUID;
 import org.json.JSONException;
+import org.json.JSONObject;
 
 public class CapacitorHttpUrlConnection implements ICapacitorHttpUrlConnection {
 
+    private static final String DEFAULT_BINARY_CONTENT_TYPE = "application/octet-stream";
+
+    // String bodies from this size on are streamed instead of buffered by the connection
+    private static final int STREAMING_THRESHOLD = 64 * 1024;
+
+    private static final byte[] CRLF = { '\r', '\n' };
+
     private final HttpURLConnection connection;
 
     /**
@@ -164,12 +181,34 @@ public class CapacitorHttpUrlConnection implements ICapacitorHttpUrlConnection {
     }
 
     /**
-     *
+     * Sets the request body from the data option of the call. The dataType option selects
+     * how data is read:
+     * <ul>
+     *  <li>"file": data is the path of a file, which is streamed as the body</li>
+     *  <li>"base64": data is base64 encoded binary, which is decoded as the body</li>
+     *  <li>"formData": data is an array of {key, value, type, fileName, contentType} entries,
+     *  sent as multipart/form-data. type is "string", "file" or "base64"</li>
+     * </ul>
+     * Otherwise data is sent as a string in the request Content-Type.
      * @param call
      * @throws JSONException
      * @throws IOException
      */
     public void setRequestBody(PluginCall call, JSValue body) throws JSONException, IOException {
+        String dataType = call.getString("dataType");
+        if ("file".equals(dataType)) {
+            setDefaultContentType(DEFAULT_BINARY_CONTENT_TYPE);
+            writeRequestBody(getRequestFile(call.getString("data")));
+            return;
+        } else if ("base64".equals(dataType)) {
+            setDefaultContentType(DEFAULT_BINARY_CONTENT_TYPE);
+            writeRequestBody(Base64.decode(call.getString("data", ""), Base64.DEFAULT));
+            return;
+        } else if ("formData".equals(dataType)) {
+            writeFormData(call.getArray("data", new JSArray()));
+            return;
+        }
+
         String contentType = connection.getRequestProperty("Content-Type");
         String dataString = "";
 
@@ -199,12 +238,151 @@ public class CapacitorHttpUrlConnection implements ICapacitorHttpUrlConnection {
      * @param body The string value to write to the connection stream.
      */
     private void writeRequestBody(String body) throws IOException {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        // Small bodies keep the default buffered mode, which can be replayed on redirects and auth challenges
+        if (bytes.length >= STREAMING_THRESHOLD) {
+            connection.setFixedLengthStreamingMode(bytes.length);
+        }
         try (DataOutputStream os = new DataOutputStream(connection.getOutputStream())) {
-            os.write(body.getBytes(StandardCharsets.UTF_8));
+            os.write(bytes);
             os.flush();
         }
     }
 
+    /**
+     * Writes the provided bytes to the HTTP connection, without buffering them again.
+     *
+     * @param body The bytes to write to the connection stream.
+     */
+    private void writeRequestBody(byte[] body) throws IOException {
+        connection.setFixedLengthStreamingMode(body.length);
+        try (OutputStream os = connection.getOutputStream()) {
+            os.write(body);
+        }
+    }
+
+    /**
+     * Streams the provided file to the HTTP connection, so it is never held in memory.
+     *
+     * @param file The file to write to the connection stream.
+     */
+    private void writeRequestBody(File file) throws IOException {
+        connection.setFixedLengthStreamingMode(file.length());
+        try (OutputStream os = connection.getOutputStream()) {
+            copyFile(file, os);
+        }
+    }
+
+    /**
+     * Streams a multipart/form-data body to the HTTP connection. Files are read as they are
+     * sent, and the length of the body is computed ahead so it is sent with a fixed length.
+     *
+     * @param entries The form entries, with a key, a value and an optional type, fileName and contentType
+     */
+    private void writeFormData(JSArray entries) throws IOException, JSONException {
+        String boundary = "----CapacitorFormBoundary" + UUID.randomUUID().toString().replace("-", "");
+        connection.setRequestProperty("Content-Type", "multipart/form-data; boundary=" + boundary);
+
+        // Each part is a byte[] or a File, so the body can be measured before it is written
+        List<Object> parts = new ArrayList<>();
+        for (int i = 0; i < entries.length(); i++) {
+            JSONObject entry = entries.getJSONObject(i);
+            String key = entry.getString("key");
+            String type = entry.optString("type", "string");
+            String value = entry.optString("value", "");
+
+            StringBuilder header = new StringBuilder();
+            header.append("--").append(boundary).append("\r\n");
+            header.append("Content-Disposition: form-data; name=\"").append(escapeFormName(key)).append('"');
+            if ("file".equals(type)) {
+                File file = getRequestFile(value);
+                String fileName = entry.optString("fileName", file.getName());
+                header.append("; filename=\"").append(escapeFormName(fileName)).append("\"\r\n");
+                header.append("Content-Type: ").append(entry.optString("contentType", DEFAULT_BINARY_CONTENT_TYPE)).append("\r\n\r\n");
+                parts.add(header.toString().getBytes(StandardCharsets.UTF_8));
+                parts.add(file);
+            } else if ("base64".equals(type)) {
+                String fileName = entry.optString("fileName", key);
+                header.append("; filename=\"").append(escapeFormName(fileName)).append("\"\r\n");
+                header.append("Content-Type: ").append(entry.optString("contentType", DEFAULT_BINARY_CONTENT_TYPE)).append("\r\n\r\n");
+                parts.add(header.toString().getBytes(StandardCharsets.UTF_8));
+                parts.add(Base64.decode(value, Base64.DEFAULT));
+            } else {
+                header.append("\r\n\r\n").append(value);
+                parts.add(header.toString().getBytes(StandardCharsets.UTF_8));
+            }
+            parts.add(CRLF);
+        }
+        parts.add(("--" + boundary + "--\r\n").getBytes(StandardCharsets.UTF_8));
+
+        long length = 0;
+        for (Object part : parts) {
+            length += part instanceof File ? ((File) part).length() : ((byte[]) part).length;
+        }
+        connection.setFixedLengthStreamingMode(length);
+
+        try (OutputStream os = connection.getOutputStream()) {
+            for (Object part : parts) {
+                if (part instanceof File) {
+                    copyFile((File) part, os);
+                } else {
+                    os.write((byte[]) part);
+                }
+            }
+        }
+    }
+
+    private void setDefaultContentType(String contentType) {
+        String current = connection.getRequestProperty("Content-Type");
+        if (current == null || current.isEmpty()) {
+            connection.setRequestProperty("Content-Type", contentType);
+        }
+    }
+
+    /**
+     * Get the file for a path given by the page, which may be a portable
+     * {@code /_capacitor_file_} path or a file:// url
+     */
+    private static File getRequestFile(String path) throws IOException {
+        if (path == null) {
+            throw new IOException("Must provide a file path as data");
+        }
+        if (path.startsWith("file://")) {
+            path = path.substring("file://".length());
+        } else if (path.startsWith(Bridge.CAPACITOR_FILE_START)) {
+            path = path.substring(Bridge.CAPACITOR_FILE_START.length());
+        } else {
+            int start = path.indexOf(Bridge.CAPACITOR_FILE_START);
+            // A full local url, such as http://localhost/_capacitor_file_/data/...
+            if (start >= 0 && path.startsWith("http")) {
+                path = Uri.decode(path.substring(start + Bridge.CAPACITOR_FILE_START.length()));
+            }
+        }
+
+        File file = new File(path);
+        if (!file.isFile()) {
+            throw new FileNotFoundException("File not found: " + path);
+        }
+        return file;
+    }
+
+    private static void copyFile(File file, OutputStream os) throws IOException {
+        try (InputStream in = new FileInputStream(file)) {
+            byte[] buffer = new byte[8 * 1024];
+            int readBytes;
+            while ((readBytes = in.read(buffer)) != -1) {
+                os.write(buffer, 0, readBytes);
+            }
+        }
+    }
+
+    /**
+     * Escape a form field or file name the way browsers do
+     */
+    private static String escapeFormName(String name) {
+        return name.replace("\"", "%22").replace("\r", "%0D").replace("\n", "%0A");
+    }
+
     /**
      * Opens a communications link to the resource referenced by this
      * URL, if such a connection has not already been established.
@@ -0,0 +1,215 @@
+package com.getcapacitor.plugin.util;
+
+import android.content.Context;
+import android.net.http.HttpResponseCache;
+import com.getcapacitor.JSObject;
+import com.getcapacitor.Logger;
+import com.getcapacitor.PluginConfig;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.ResponseCache;
+import java.net.URL;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * HttpClient opens the HTTP connections used by {@link com.getcapacitor.plugin.CapacitorHttp}
+ * and by the proxy path of {@link com.getcapacitor.WebViewLocalServer}.
+ * <p>
+ * All connections go through the platform {@link HttpURLConnection} stack, which keeps
+ * idle connections alive in a shared pool and negotiates HTTP/2 where the platform
+ * supports it. A connection only returns to the pool once its response body has been
+ * read to the end and closed, see {@link #release(HttpURLConnection)}. The pool settings
+ * of the platform are left as they are, they are shared with the rest of the app.
+ * <p>
+ * Responses are stored in a size bounded LRU disk cache once
+ * {@link #initialize(Context, PluginConfig)} has been called. The cache honors Cache-Control
+ * and revalidates stale responses with their ETag or Last-Modified. The platform only
+ * supports a process wide response cache, so it is not installed when the app already
+ * installed one: an {@link HttpResponseCache} of the app is used as is, and with any other
+ * {@link ResponseCache} CapacitorHttp requests go to the network.
+ * <p>
+ * The CapacitorHttp plugin configuration sets the cache size in bytes with
+ * {@code cacheSize}, 0 disables the cache, and the default stale-while-revalidate
+ * window in seconds with {@code staleWhileRevalidate}.
+ */
+public class HttpClient {
+
+    public static final int DEFAULT_TIMEOUT = 30 * 1000;
+
+    private static final String CACHE_DIRECTORY = "capacitor_http_cache";
+    private static final int DEFAULT_CACHE_SIZE = 10 * 1024 * 1024;
+
+    // Status of an only-if-cached request the cache can't answer
+    private static final int GATEWAY_TIMEOUT = 504;
+
+    private static boolean initialized = false;
+    private static int staleWhileRevalidate = 0;
+
+    // Urls being revalidated in the background, so a burst of stale hits revalidates once
+    private static final Set<String> revalidating = new HashSet<>();
+    private static final ExecutorService revalidateExecutor = Executors.newSingleThreadExecutor(
+        runnable -> new Thread(runnable, "CapacitorHttp-revalidate")
+    );
+
+    /**
+     * Install the response cache, unless the app has one.
+     * Safe to call more than once, only the first call has an effect.
+     * @param context any context of the application
+     * @param config the CapacitorHttp plugin configuration
+     */
+    public static synchronized void initialize(Context context, PluginConfig config) {
+        if (initialized) {
+            return;
+        }
+        initialized = true;
+
+        staleWhileRevalidate = config.getInt("staleWhileRevalidate", 0);
+        int cacheSize = config.getInt("cacheSize", DEFAULT_CACHE_SIZE);
+        if (cacheSize > 0 && ResponseCache.getDefault() == null) {
+            try {
+                File cacheDir = new File(context.getCacheDir(), CACHE_DIRECTORY);
+                HttpResponseCache.install(cacheDir, cacheSize);
+            } catch (IOException e) {
+                Logger.error("Unable to install the HTTP response cache", e);
+            }
+        }
+    }
+
+    /**
+     * The default stale-while-revalidate window in seconds, 0 when disabled
+     */
+    public static int getStaleWhileRevalidate() {
+        return staleWhileRevalidate;
+    }
+
+    /**
+     * Ask a connection to be answered from the cache only, accepting a response
+     * that has been stale for up to the given number of seconds. The cache answers
+     * with {@link #isCacheMiss(HttpURLConnection) a miss} when it has no such response.
+     * @param connection a connection that has not been connected yet
+     * @param maxStale the number of seconds a cached response may be stale
+     * @return false if there is no cache installed
+     */
+    public static boolean requestFromCache(HttpURLConnection connection, int maxStale) {
+        if (HttpResponseCache.getInstalled() == null) {
+            return false;
+        }
+        connection.addRequestProperty("Cache-Control", "only-if-cached, max-stale=" + maxStale);
+        return true;
+    }
+
+    /**
+     * Whether a connection made with {@link #requestFromCache(HttpURLConnection, int)}
+     * could not be answered from the cache
+     */
+    public static boolean isCacheMiss(HttpURLConnection connection) throws IOException {
+        return connection.getResponseCode() == GATEWAY_TIMEOUT;
+    }
+
+    /**
+     * Whether a response was served from the cache after it expired
+     */
+    public static boolean isStale(HttpURLConnection connection) {
+        String warning = connection.getHeaderField("Warning");
+        return warning != null && warning.startsWith("110");
+    }
+
+    /**
+     * Send a connection in the background and read its response, which refreshes
+     * the cached response for its url. Does nothing if the url is already being revalidated.
+     * @param connection a connection for the url, that has not been connected yet
+     */
+    public static void revalidate(HttpURLConnection connection) {
+        final String url = connection.getURL().toString();
+        synchronized (revalidating) {
+            if (!revalidating.add(url)) {
+                return;
+            }
+        }
+        revalidateExecutor.execute(
+            () -> {
+                try {
+                    connection.getResponseCode();
+                    release(connection);
+                } catch (IOException e) {
+                    Logger.debug("Revalidation failed for " + url + ": " + e.getMessage());
+                    connection.disconnect();
+                } finally {
+                    synchronized (revalidating) {
+                        revalidating.remove(url);
+                    }
+                }
+            }
+        );
+    }
+
+    /**
+     * Statistics of the response cache
+     * @return an object with the request, hit and network counts, the hit ratio,
+     * and the size and maximum size of the cache in bytes, empty without a cache
+     */
+    public static JSObject getCacheStats() {
+        JSObject stats = new JSObject();
+        HttpResponseCache cache = HttpResponseCache.getInstalled();
+        if (cache != null) {
+            int requestCount = cache.getRequestCount();
+            stats.put("requestCount", requestCount);
+            stats.put("hitCount", cache.getHitCount());
+            stats.put("networkCount", cache.getNetworkCount());
+            stats.put("hitRatio", requestCount > 0 ? (double) cache.getHitCount() / requestCount : 0);
+            stats.put("size", cache.size());
+            stats.put("maxSize", cache.maxSize());
+        }
+        return stats;
+    }
+
+    /**
+     * Write pending cache entries to disk, called when the app stops
+     */
+    public static void flush() {
+        HttpResponseCache cache = HttpResponseCache.getInstalled();
+        if (cache != null) {
+            cache.flush();
+        }
+    }
+
+    /**
+     * Open a connection to the given url with the default timeouts.
+     * @param url the url to connect to
+     * @return a connection that has not been connected yet
+     * @throws IOException if the connection can't be opened
+     */
+    public static HttpURLConnection open(URL url) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+        connection.setConnectTimeout(DEFAULT_TIMEOUT);
+        connection.setReadTimeout(DEFAULT_TIMEOUT);
+        connection.setUseCaches(true);
+        return connection;
+    }
+
+    /**
+     * Drain and close the response body of a connection, so its socket can be
+     * reused by the next request to the same host instead of being closed.
+     * @param connection the connection to release
+     */
+    public static void release(HttpURLConnection connection) {
+        try {
+            InputStream stream = connection.getErrorStream();
+            if (stream == null) {
+                stream = connection.getInputStream();
+            }
+            byte[] buffer = new byte[8 * 1024];
+            while (stream.read(buffer) != -1) {
+                // discard the rest of the body
+            }
+            stream.close();
+        } catch (IOException e) {
+            connection.disconnect();
+        }
+    }
+}
@@ -0,0 +1,253 @@
+package com.getcapacitor.plugin.util;
+
+import com.getcapacitor.JSObject;
+import com.getcapacitor.PluginCall;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs HTTP requests on a bounded pool of threads.
+ * <p>
+ * Requests wait in a queue ordered by priority, then by arrival, and are started while fewer
+ * than {@code maxRequests} are running in total and fewer than {@code maxRequestsPerHost} are
+ * running for their host. Requests over {@code maxQueuedRequests} are rejected. Queued and
+ * running requests can be cancelled by id.
+ */
+public class HttpRequestDispatcher {
+
+    public static final String CANCELLED_CODE = "CANCELLED";
+
+    private final int maxRequests;
+    private final int maxRequestsPerHost;
+    private final int maxQueuedRequests;
+    private final ThreadPoolExecutor executor;
+
+    private final PriorityQueue<Task> queued = new PriorityQueue<>();
+    private final Map<String, Task> tasks = new HashMap<>();
+    private final Map<String, Integer> runningPerHost = new HashMap<>();
+    private int running = 0;
+    private long sequence = 0;
+
+    public HttpRequestDispatcher(int maxRequests, int maxRequestsPerHost, int maxQueuedRequests) {
+        this.maxRequests = maxRequests;
+        this.maxRequestsPerHost = maxRequestsPerHost;
+        this.maxQueuedRequests = maxQueuedRequests;
+
+        AtomicInteger threadCount = new AtomicInteger();
+        executor =
+            new ThreadPoolExecutor(
+                maxRequests,
+                maxRequests,
+                60,
+                TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(),
+                runnable -> new Thread(runnable, "CapacitorHttp-" + threadCount.incrementAndGet())
+            );
+        executor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Queue an HTTP request for the given call. The call's {@code requestId} option, or its
+     * callback id, identifies it for {@link #cancel(String)}, and its {@code priority} option
+     * orders it in the queue, higher first.
+     * @param call the plugin call with the request options
+     * @param httpMethod the HTTP method that overrides the call's method, may be null
+     */
+    public void enqueue(PluginCall call, String httpMethod) {
+        enqueue(call, httpMethod, null, null);
+    }
+
+    /**
+     * Queue an HTTP request for the given call, see {@link #enqueue(PluginCall, String)}
+     * @param call the plugin call with the request options
+     * @param httpMethod the HTTP method that overrides the call's method, may be null
+     * @param responseFile the file to stream the response body to, may be null
+     * @param emitter notified of the progress of the response body, may be null
+     */
+    public synchronized void enqueue(
+        PluginCall call,
+        String httpMethod,
+        HttpRequestHandler.ResponseFile responseFile,
+        HttpRequestHandler.ProgressEmitter emitter
+    ) {
+        if (queued.size() >= maxQueuedRequests) {
+            call.reject("Too many pending requests", "QUEUE_FULL");
+            return;
+        }
+
+        String requestId = call.getString("requestId", call.getCallbackId());
+        if (tasks.containsKey(requestId)) {
+            call.reject("A request with id " + requestId + " is already pending", "DUPLICATE_REQUEST");
+            return;
+        }
+
+        Task task = new Task(call, httpMethod, requestId, getHost(call), call.getInt("priority", 0), sequence++);
+        task.responseFile = responseFile;
+        task.emitter = emitter;
+        tasks.put(requestId, task);
+        queued.add(task);
+        promote();
+    }
+
+    /**
+     * Cancel a queued or running request. The request's call is rejected
+     * with the {@link #CANCELLED_CODE} code.
+     * @param requestId the id of the request
+     * @return false if no request with this id is pending
+     */
+    public boolean cancel(String requestId) {
+        Task task;
+        synchronized (this) {
+            task = tasks.remove(requestId);
+            if (task == null) {
+                return false;
+            }
+            queued.remove(task);
+        }
+
+        // Aborts the connection if the request is running, its thread then finishes normally
+        task.handle.cancel();
+        if (task.complete()) {
+            task.call.reject("Request cancelled", CANCELLED_CODE);
+        }
+        return true;
+    }
+
+    /**
+     * Cancel all queued and running requests
+     */
+    public void cancelAll() {
+        List<String> requestIds;
+        synchronized (this) {
+            requestIds = new ArrayList<>(tasks.keySet());
+        }
+        for (String requestId : requestIds) {
+            cancel(requestId);
+        }
+    }
+
+    public synchronized int getRunningCount() {
+        return running;
+    }
+
+    public synchronized int getQueuedCount() {
+        return queued.size();
+    }
+
+    /**
+     * Start queued requests while the concurrency limits allow it
+     */
+    private synchronized void promote() {
+        List<Task> ready = new ArrayList<>();
+        // Requests for hosts at their limit keep their place for the next round
+        List<Task> blocked = new ArrayList<>();
+        while (running < maxRequests && !queued.isEmpty()) {
+            Task task = queued.poll();
+            int hostCount = getRunningCount(task.host);
+            if (hostCount >= maxRequestsPerHost) {
+                blocked.add(task);
+                continue;
+            }
+            runningPerHost.put(task.host, hostCount + 1);
+            running++;
+            ready.add(task);
+        }
+        queued.addAll(blocked);
+
+        for (Task task : ready) {
+            executor.execute(task);
+        }
+    }
+
+    private synchronized void finished(Task task) {
+        if (tasks.get(task.requestId) == task) {
+            tasks.remove(task.requestId);
+        }
+        running--;
+        int hostCount = getRunningCount(task.host) - 1;
+        if (hostCount > 0) {
+            runningPerHost.put(task.host, hostCount);
+        } else {
+            runningPerHost.remove(task.host);
+        }
+        promote();
+    }
+
+    private int getRunningCount(String host) {
+        Integer count = runningPerHost.get(host);
+        return count != null ? count : 0;
+    }
+
+    private static String getHost(PluginCall call) {
+        try {
+            return new URL(call.getString("url", "")).getHost();
+        } catch (MalformedURLException e) {
+            // The request fails when it runs, it only needs a key here
+            return "";
+        }
+    }
+
+    private final class Task implements Runnable, Comparable<Task> {
+
+        final PluginCall call;
+        final String httpMethod;
+        final String requestId;
+        final String host;
+        final int priority;
+        final long sequence;
+        final HttpRequestHandler.RequestHandle handle = new HttpRequestHandler.RequestHandle();
+        HttpRequestHandler.ResponseFile responseFile;
+        HttpRequestHandler.ProgressEmitter emitter;
+        private final AtomicBoolean completed = new AtomicBoolean(false);
+
+        Task(PluginCall call, String httpMethod, String requestId, String host, int priority, long sequence) {
+            this.call = call;
+            this.httpMethod = httpMethod;
+            this.requestId = requestId;
+            this.host = host;
+            this.priority = priority;
+            this.sequence = sequence;
+        }
+
+        /**
+         * @return true for the first caller only, which settles the call
+         */
+        boolean complete() {
+            return completed.compareAndSet(false, true);
+        }
+
+        @Override
+        public void run() {
+            try {
+                JSObject response = HttpRequestHandler.request(call, httpMethod, handle, responseFile, emitter);
+                if (complete()) {
+                    call.resolve(response);
+                }
+            } catch (Exception e) {
+                if (complete()) {
+                    call.reject(e.getLocalizedMessage(), e.getClass().getSimpleName(), e);
+                }
+            } finally {
+                finished(this);
+            }
+        }
+
+        @Override
+        public int compareTo(Task other) {
+            if (priority != other.priority) {
+                return Integer.compare(other.priority, priority);
+            }
+            return Long.compare(sequence, other.sequence);
+        }
+    }
+}
@@ -1,31 +1,43 @@
 package com.getcapacitor.plugin.util;
 
+import android.os.SystemClock;
 import android.text.TextUtils;
 import android.util.Base64;
 import com.getcapacitor.JSArray;
 import com.getcapacitor.JSObject;
 import com.getcapacitor.JSValue;
 import com.getcapacitor.PluginCall;
-import java.io.BufferedReader;
 import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.Reader;
 import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
+import java.util.TreeMap;
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
 public class HttpRequestHandler {
 
+    // Requests in flight that identical requests can wait for, by request key
+    private static final Map<String, InFlight> inFlight = new HashMap<>();
+
     /**
      * An enum specifying conventional HTTP Response Types
      * See https://developer.mozilla.org/en-US/docs/Web/API/XMLHttpRequest/responseType
@@ -100,7 +112,7 @@ public class HttpRequestHandler {
         }
 
         public HttpURLConnectionBuilder openConnection() throws IOException {
-            connection = new CapacitorHttpUrlConnection((HttpURLConnection) url.openConnection());
+            connection = new CapacitorHttpUrlConnection(HttpClient.open(url));
 
             connection.setAllowUserInteraction(false);
             connection.setRequestMethod(method);
@@ -189,28 +201,41 @@ public class HttpRequestHandler {
      * @throws JSONException Thrown if the JSON is unable to be parsed
      */
     private static JSObject buildResponse(CapacitorHttpUrlConnection connection) throws IOException, JSONException {
-        return buildResponse(connection, ResponseType.DEFAULT);
+        return buildResponse(connection, ResponseType.DEFAULT, JsonOutput.DEFAULT, null, null);
     }
 
     /**
      * Builds an HTTP Response given CapacitorHttpUrlConnection and ResponseType objects
      * @param connection The CapacitorHttpUrlConnection to respond with
      * @param responseType The requested ResponseType
+     * @param jsonOutput How a successful JSON response body is returned
+     * @param responseFile The file to stream a successful response body to, or null to return it as data
+     * @param emitter Notified of the progress of reading the response body, may be null
      * @return A JSObject that contains the HTTPResponse to return to the browser
      * @throws IOException Thrown if the InputStream is unable to be parsed correctly
      * @throws JSONException Thrown if the JSON is unable to be parsed
      */
-    private static JSObject buildResponse(CapacitorHttpUrlConnection connection, ResponseType responseType)
-        throws IOException, JSONException {
+    private static JSObject buildResponse(
+        CapacitorHttpUrlConnection connection,
+        ResponseType responseType,
+        JsonOutput jsonOutput,
+        ResponseFile responseFile,
+        ProgressEmitter emitter
+    ) throws IOException, JSONException {
         int statusCode = connection.getResponseCode();
 
         JSObject output = new JSObject();
         output.put("status", statusCode);
         output.put("headers", buildResponseHeaders(connection));
         output.put("url", connection.getURL());
-        output.put("data", readData(connection, responseType));
 
         InputStream errorStream = connection.getErrorStream();
+        if (errorStream == null && responseFile != null) {
+            output.put("file", writeStreamToFile(withProgress(connection.getInputStream(), connection, emitter), responseFile));
+        } else {
+            output.put("data", readData(connection, responseType, jsonOutput, emitter));
+        }
+
         if (errorStream != null) {
             output.put("error", true);
         }
@@ -227,7 +252,26 @@ public class HttpRequestHandler {
      * @throws JSONException Thrown if the JSON is malformed when parsing as JSON
      */
     static Object readData(ICapacitorHttpUrlConnection connection, ResponseType responseType) throws IOException, JSONException {
-        InputStream errorStream = connection.getErrorStream();
+        return readData(connection, responseType, JsonOutput.DEFAULT, null);
+    }
+
+    /**
+     * Read the existing ICapacitorHttpUrlConnection data
+     * @param connection The ICapacitorHttpUrlConnection object to read in
+     * @param responseType The type of HTTP response to return to the API
+     * @param jsonOutput How a successful JSON response body is returned
+     * @param emitter Notified of the progress of reading the response body, may be null
+     * @return The parsed data from the connection
+     * @throws IOException Thrown if the InputStreams cannot be properly parsed
+     * @throws JSONException Thrown if the JSON is malformed when parsing as JSON
+     */
+    static Object readData(
+        ICapacitorHttpUrlConnection connection,
+        ResponseType responseType,
+        JsonOutput jsonOutput,
+        ProgressEmitter emitter
+    ) throws IOException, JSONException {
+        InputStream errorStream = withProgress(connection.getErrorStream(), connection, emitter);
         String contentType = connection.getHeaderField("Content-Type");
 
         if (errorStream != null) {
@@ -238,15 +282,15 @@ public class HttpRequestHandler {
             }
         } else if (contentType != null && contentType.contains(MimeType.APPLICATION_JSON.getValue())) {
             // backward compatibility
-            return parseJSON(readStreamAsString(connection.getInputStream()));
+            return jsonOutput.read(withProgress(connection.getInputStream(), connection, emitter));
         } else {
-            InputStream stream = connection.getInputStream();
+            InputStream stream = withProgress(connection.getInputStream(), connection, emitter);
             switch (responseType) {
                 case ARRAY_BUFFER:
                 case BLOB:
                     return readStreamAsBase64(stream);
                 case JSON:
-                    return parseJSON(readStreamAsString(stream));
+                    return jsonOutput.read(stream);
                 case DOCUMENT:
                 case TEXT:
                 default:
@@ -324,10 +368,11 @@ public class HttpRequestHandler {
      * @throws IOException thrown if the InputStream is unable to be read as base64
      */
     private static String readStreamAsBase64(InputStream in) throws IOException {
-        try (ByteArrayOutputStream out = new ByteArrayOutputStream()) {
+        // Closing the stream returns the connection to the keep-alive pool
+        try (InputStream input = in; ByteArrayOutputStream out = new ByteArrayOutputStream()) {
             byte[] buffer = new byte[1024];
             int readBytes;
-            while ((readBytes = in.read(buffer)) != -1) {
+            while ((readBytes = input.read(buffer)) != -1) {
                 out.write(buffer, 0, readBytes);
             }
             byte[] result = out.toByteArray();
@@ -342,20 +387,85 @@ public class HttpRequestHandler {
      * @throws IOException thrown if the InputStream is unable to be read
      */
     private static String readStreamAsString(InputStream in) throws IOException {
-        try (BufferedReader reader = new BufferedReader(new InputStreamReader(in))) {
+        // Read in blocks rather than lines so line endings are kept as sent
+        try (Reader reader = new InputStreamReader(in, StandardCharsets.UTF_8)) {
             StringBuilder builder = new StringBuilder();
-            String line = reader.readLine();
-            while (line != null) {
-                builder.append(line);
-                line = reader.readLine();
-                if (line != null) {
-                    builder.append(System.getProperty("line.separator"));
-                }
+            char[] buffer = new char[8 * 1024];
+            int readChars;
+            while ((readChars = reader.read(buffer)) != -1) {
+                builder.append(buffer, 0, readChars);
             }
             return builder.toString();
         }
     }
 
+    /**
+     * Writes an InputStream to a file, without holding it in memory. The data is written
+     * to a temporary file next to the target, which is only replaced once the stream
+     * has been read completely.
+     * @param in The InputStream to write
+     * @param responseFile The file to write to
+     * @return A JSObject with the path, size and local url of the written file
+     * @throws IOException thrown if the InputStream can't be read or the file can't be written
+     */
+    private static JSObject writeStreamToFile(InputStream in, ResponseFile responseFile) throws IOException {
+        File file = responseFile.getFile();
+        File parent = file.getParentFile();
+        if (parent != null && !parent.exists() && !parent.mkdirs()) {
+            throw new IOException("Unable to create directory " + parent);
+        }
+
+        File partFile = new File(file.getPath() + ".part");
+        long size = 0;
+        try (InputStream input = in; OutputStream out = new FileOutputStream(partFile)) {
+            byte[] buffer = new byte[8 * 1024];
+            int readBytes;
+            while ((readBytes = input.read(buffer)) != -1) {
+                out.write(buffer, 0, readBytes);
+                size += readBytes;
+            }
+        } catch (IOException e) {
+            partFile.delete();
+            throw e;
+        }
+
+        if ((file.exists() && !file.delete()) || !partFile.renameTo(file)) {
+            partFile.delete();
+            throw new IOException("Unable to write " + file);
+        }
+
+        JSObject output = new JSObject();
+        output.put("path", file.getAbsolutePath());
+        output.put("size", size);
+        if (responseFile.getUrl() != null) {
+            output.put("url", responseFile.getUrl());
+        }
+        return output;
+    }
+
+    /**
+     * Wraps a response stream to report its progress, if an emitter is given
+     * @param in The response stream, may be null
+     * @param connection The connection the stream was read from
+     * @param emitter The ProgressEmitter to notify, may be null
+     */
+    private static InputStream withProgress(InputStream in, ICapacitorHttpUrlConnection connection, ProgressEmitter emitter) {
+        if (in == null || emitter == null) {
+            return in;
+        }
+
+        Integer contentLength = null;
+        String contentLengthHeader = connection.getHeaderField("Content-Length");
+        if (contentLengthHeader != null) {
+            try {
+                contentLength = Integer.parseInt(contentLengthHeader.trim());
+            } catch (NumberFormatException e) {
+                // Unknown length, as for chunked responses
+            }
+        }
+        return new ProgressInputStream(in, emitter, contentLength);
+    }
+
     /**
      * Makes an Http Request based on the PluginCall parameters
      * @param call The Capacitor PluginCall that contains the options need for an Http request
@@ -365,6 +475,41 @@ public class HttpRequestHandler {
      * @throws JSONException thrown when the incoming JSON is malformed
      */
     public static JSObject request(PluginCall call, String httpMethod) throws IOException, URISyntaxException, JSONException {
+        return request(call, httpMethod, new RequestHandle());
+    }
+
+    /**
+     * Makes an Http Request based on the PluginCall parameters
+     * @param call The Capacitor PluginCall that contains the options need for an Http request
+     * @param httpMethod The HTTP method that overrides the PluginCall HTTP method
+     * @param handle A handle that can be used to cancel the request from another thread
+     * @throws IOException throws an IO request when a connection can't be made, or the request was cancelled
+     * @throws URISyntaxException thrown when the URI is malformed
+     * @throws JSONException thrown when the incoming JSON is malformed
+     */
+    public static JSObject request(PluginCall call, String httpMethod, RequestHandle handle)
+        throws IOException, URISyntaxException, JSONException {
+        return request(call, httpMethod, handle, null, null);
+    }
+
+    /**
+     * Makes an Http Request based on the PluginCall parameters
+     * @param call The Capacitor PluginCall that contains the options need for an Http request
+     * @param httpMethod The HTTP method that overrides the PluginCall HTTP method
+     * @param handle A handle that can be used to cancel the request from another thread
+     * @param responseFile The file to stream a successful response body to, or null to return it as data
+     * @param emitter Notified of the progress of reading the response body, may be null
+     * @throws IOException throws an IO request when a connection can't be made, or the request was cancelled
+     * @throws URISyntaxException thrown when the URI is malformed
+     * @throws JSONException thrown when the incoming JSON is malformed
+     */
+    public static JSObject request(
+        PluginCall call,
+        String httpMethod,
+        RequestHandle handle,
+        ResponseFile responseFile,
+        ProgressEmitter emitter
+    ) throws IOException, URISyntaxException, JSONException {
         String urlString = call.getString("url", "");
         JSObject headers = call.getObject("headers");
         JSObject params = call.getObject("params");
@@ -373,13 +518,12 @@ public class HttpRequestHandler {
         Boolean disableRedirects = call.getBoolean("disableRedirects");
         Boolean shouldEncode = call.getBoolean("shouldEncodeUrlParams", true);
         ResponseType responseType = ResponseType.parse(call.getString("responseType"));
+        JsonOutput jsonOutput = JsonOutput.from(call);
 
         String method = httpMethod != null ? httpMethod.toUpperCase(Locale.ROOT) : call.getString("method", "GET").toUpperCase(Locale.ROOT);
 
-        boolean isHttpMutate = method.equals("DELETE") || method.equals("PATCH") || method.equals("POST") || method.equals("PUT");
-
         URL url = new URL(urlString);
-        HttpURLConnectionBuilder connectionBuilder = new HttpURLConnectionBuilder()
+        final HttpURLConnectionBuilder connectionBuilder = new HttpURLConnectionBuilder()
             .setUrl(url)
             .setMethod(method)
             .setHeaders(headers)
@@ -389,8 +533,51 @@ public class HttpRequestHandler {
             .setDisableRedirects(disableRedirects)
             .openConnection();
 
+        // Identical GETs in flight at the same time share one response
+        if (method.equals("GET") && responseFile == null && emitter == null) {
+            String key = getInFlightKey(connectionBuilder.url, headers, call);
+            return requestOnce(key, handle, () -> send(call, connectionBuilder, method, handle, responseType, jsonOutput, null, null));
+        }
+
+        return send(call, connectionBuilder, method, handle, responseType, jsonOutput, responseFile, emitter);
+    }
+
+    /**
+     * Sends the request of a connection builder and builds its response
+     */
+    private static JSObject send(
+        PluginCall call,
+        HttpURLConnectionBuilder connectionBuilder,
+        String method,
+        RequestHandle handle,
+        ResponseType responseType,
+        JsonOutput jsonOutput,
+        ResponseFile responseFile,
+        ProgressEmitter emitter
+    ) throws IOException, JSONException {
+        boolean isHttpMutate = method.equals("DELETE") || method.equals("PATCH") || method.equals("POST") || method.equals("PUT");
         CapacitorHttpUrlConnection connection = connectionBuilder.build();
 
+        // Answer from the cache, even when stale, and refresh the cache in the background
+        int staleWhileRevalidate = call.getInt("staleWhileRevalidate", HttpClient.getStaleWhileRevalidate());
+        HttpURLConnection cacheConnection = connection.getHttpConnection();
+        boolean hasCacheControl = cacheConnection.getRequestProperty("Cache-Control") != null;
+        if (method.equals("GET") && staleWhileRevalidate > 0 && !hasCacheControl) {
+            if (HttpClient.requestFromCache(cacheConnection, staleWhileRevalidate)) {
+                handle.attach(connection);
+                if (!HttpClient.isCacheMiss(cacheConnection)) {
+                    if (HttpClient.isStale(cacheConnection)) {
+                        HttpClient.revalidate(connectionBuilder.openConnection().build().getHttpConnection());
+                    }
+                    return buildResponse(connection, responseType, jsonOutput, responseFile, emitter);
+                }
+                HttpClient.release(cacheConnection);
+                connection = connectionBuilder.openConnection().build();
+            }
+        }
+
+        handle.attach(connection);
+
         // Set HTTP body on a non GET or HEAD request
         if (isHttpMutate) {
             JSValue data = new JSValue(call, "data");
@@ -402,7 +589,293 @@ public class HttpRequestHandler {
 
         connection.connect();
 
-        return buildResponse(connection, responseType);
+        return buildResponse(connection, responseType, jsonOutput, responseFile, emitter);
+    }
+
+    /**
+     * Run a request, unless an identical one is already in flight, in which case
+     * wait for its response instead. If the request that was in flight fails, its
+     * error is shared as well, unless it was cancelled, then this request is retried.
+     * @param key identifies identical requests
+     * @param handle the handle of this request, cancelling it stops the wait
+     * @param sender sends the request when none is in flight
+     */
+    private static JSObject requestOnce(String key, RequestHandle handle, Sender sender) throws IOException, JSONException {
+        while (true) {
+            InFlight flight;
+            boolean leader;
+            synchronized (inFlight) {
+                flight = inFlight.get(key);
+                leader = flight == null;
+                if (leader) {
+                    flight = new InFlight();
+                    inFlight.put(key, flight);
+                }
+            }
+
+            if (!leader) {
+                handle.attachWaiter(Thread.currentThread());
+                try {
+                    JSObject response = flight.await();
+                    if (response != null) {
+                        return response;
+                    }
+                } finally {
+                    handle.detachWaiter();
+                }
+                // The request in flight was cancelled by its caller, send this one again
+                continue;
+            }
+
+            JSObject response = null;
+            Exception error = null;
+            try {
+                response = sender.send();
+                return response;
+            } catch (IOException | JSONException | RuntimeException e) {
+                error = e;
+                throw e;
+            } finally {
+                synchronized (inFlight) {
+                    inFlight.remove(key);
+                }
+                flight.complete(response, handle.isCancelled() ? null : error);
+            }
+        }
+    }
+
+    private static String getInFlightKey(URL url, JSObject headers, PluginCall call) {
+        StringBuilder key = new StringBuilder(url.toString());
+        if (headers != null) {
+            // Same headers in any order are the same request
+            Map<String, String> sortedHeaders = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+            Iterator<String> names = headers.keys();
+            while (names.hasNext()) {
+                String name = names.next();
+                sortedHeaders.put(name, headers.getString(name));
+            }
+            key.append('\n').append(sortedHeaders);
+        }
+        // The response depends on how the body is read, too
+        key.append('\n').append(call.getString("responseType"));
+        key.append('\n').append(call.getString("jsonMode"));
+        key.append('\n').append(call.getArray("jsonPointers", null));
+        // And on how the connection is made
+        key.append('\n').append(call.getBoolean("disableRedirects"));
+        key.append('\n').append(call.getInt("connectTimeout"));
+        key.append('\n').append(call.getInt("readTimeout"));
+        return key.toString();
+    }
+
+    @FunctionalInterface
+    private interface Sender {
+        JSObject send() throws IOException, JSONException;
+    }
+
+    /**
+     * The outcome of a request in flight, which identical requests wait for
+     */
+    private static class InFlight {
+
+        private boolean done = false;
+        private JSObject response;
+        private Exception error;
+
+        /**
+         * @param response the response, or null if the request failed
+         * @param error the error to share, or null if it shouldn't be shared
+         */
+        synchronized void complete(JSObject response, Exception error) {
+            this.done = true;
+            this.response = response;
+            this.error = error;
+            notifyAll();
+        }
+
+        /**
+         * @return the response, or null if the request failed with an error that isn't shared
+         */
+        synchronized JSObject await() throws IOException, JSONException {
+            while (!done) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    throw new InterruptedIOException("Request cancelled");
+                }
+            }
+            if (error instanceof IOException) {
+                throw (IOException) error;
+            } else if (error instanceof JSONException) {
+                throw (JSONException) error;
+            } else if (error instanceof RuntimeException) {
+                throw (RuntimeException) error;
+            }
+            return response;
+        }
+    }
+
+    /**
+     * How a JSON response body is returned, from the jsonMode and jsonPointers options.
+     * By default it is parsed into objects, which are serialized again to cross the bridge.
+     * In "raw" mode the JSON text is returned as a string for the page to parse once,
+     * and with jsonPointers only the selected values are read and returned, keyed by pointer.
+     */
+    static class JsonOutput {
+
+        static final JsonOutput DEFAULT = new JsonOutput(false, null);
+
+        private final boolean raw;
+        private final JsonProjection projection;
+
+        private JsonOutput(boolean raw, JsonProjection projection) {
+            this.raw = raw;
+            this.projection = projection;
+        }
+
+        static JsonOutput from(PluginCall call) throws JSONException {
+            boolean raw = "raw".equals(call.getString("jsonMode"));
+            JSArray pointers = call.getArray("jsonPointers", null);
+            JsonProjection projection = null;
+            if (pointers != null && pointers.length() > 0) {
+                projection = new JsonProjection(pointers.<String>toList());
+            }
+            return raw || projection != null ? new JsonOutput(raw, projection) : DEFAULT;
+        }
+
+        Object read(InputStream stream) throws IOException, JSONException {
+            if (projection != null) {
+                return projection.project(new InputStreamReader(stream, StandardCharsets.UTF_8));
+            }
+            String json = readStreamAsString(stream);
+            return raw ? json : parseJSON(json);
+        }
+    }
+
+    /**
+     * A file a response body is streamed to instead of being returned as data
+     */
+    public static class ResponseFile {
+
+        private final File file;
+        private final String url;
+
+        /**
+         * @param file the file to write
+         * @param url the url the page can load the file from, may be null
+         */
+        public ResponseFile(File file, String url) {
+            this.file = file;
+            this.url = url;
+        }
+
+        public File getFile() {
+            return file;
+        }
+
+        public String getUrl() {
+            return url;
+        }
+    }
+
+    /**
+     * Reports the bytes read from a response stream, at most every
+     * {@link #INTERVAL} milliseconds and once the stream ends
+     */
+    private static class ProgressInputStream extends FilterInputStream {
+
+        private static final long INTERVAL = 100;
+
+        private final ProgressEmitter emitter;
+        private final Integer contentLength;
+        private long bytes = 0;
+        private long lastEmit = 0;
+        private boolean ended = false;
+
+        ProgressInputStream(InputStream in, ProgressEmitter emitter, Integer contentLength) {
+            super(in);
+            this.emitter = emitter;
+            this.contentLength = contentLength;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int value = super.read();
+            progress(value == -1 ? -1 : 1);
+            return value;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            int readBytes = super.read(buffer, offset, length);
+            progress(readBytes);
+            return readBytes;
+        }
+
+        private void progress(int readBytes) {
+            if (ended) {
+                return;
+            }
+            if (readBytes == -1) {
+                ended = true;
+            } else {
+                bytes += readBytes;
+            }
+
+            long now = SystemClock.uptimeMillis();
+            if (ended || now - lastEmit >= INTERVAL) {
+                lastEmit = now;
+                emitter.emit((int) Math.min(bytes, Integer.MAX_VALUE), contentLength);
+            }
+        }
+    }
+
+    /**
+     * Lets a request in progress be cancelled from another thread,
+     * by disconnecting its connection
+     */
+    public static class RequestHandle {
+
+        private boolean cancelled = false;
+        private CapacitorHttpUrlConnection connection;
+        private Thread waiter;
+
+        synchronized void attach(CapacitorHttpUrlConnection connection) throws IOException {
+            if (cancelled) {
+                connection.getHttpConnection().disconnect();
+                throw new InterruptedIOException("Request cancelled");
+            }
+            this.connection = connection;
+        }
+
+        /**
+         * Attach a thread waiting for an identical request, which is interrupted on cancel
+         */
+        synchronized void attachWaiter(Thread thread) throws IOException {
+            if (cancelled) {
+                throw new InterruptedIOException("Request cancelled");
+            }
+            this.waiter = thread;
+        }
+
+        synchronized void detachWaiter() {
+            waiter = null;
+            // Don't leave an interrupt from a late cancel on a pooled thread
+            Thread.interrupted();
+        }
+
+        public synchronized void cancel() {
+            cancelled = true;
+            if (connection != null) {
+                connection.getHttpConnection().disconnect();
+            }
+            if (waiter != null) {
+                waiter.interrupt();
+            }
+        }
+
+        public synchronized boolean isCancelled() {
+            return cancelled;
+        }
     }
 
     @FunctionalInterface
@@ -0,0 +1,206 @@
+package com.getcapacitor.plugin.util;
+
+import android.util.JsonReader;
+import android.util.JsonToken;
+import com.getcapacitor.JSArray;
+import com.getcapacitor.JSObject;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Selects values out of a JSON document by JSON pointer (RFC 6901) while it is read.
+ * <p>
+ * The document is read as a stream, and only the selected values are built into
+ * objects. Everything else is skipped without being parsed into a tree, so a large
+ * response costs a single pass and only the selected parts cross the bridge.
+ */
+class JsonProjection {
+
+    /**
+     * A trie of pointer tokens. A node with a pointer is the end of a requested pointer,
+     * deeper pointers are then resolved against the value read for it.
+     */
+    private static class Node {
+
+        final Map<String, Node> children = new HashMap<>();
+        String pointer;
+        List<String> tokens;
+    }
+
+    private final Node root = new Node();
+
+    /**
+     * @param pointers the JSON pointers to select, such as "/items/0/name"
+     * @throws IllegalArgumentException if a pointer is not empty and doesn't start with "/"
+     */
+    JsonProjection(List<String> pointers) {
+        for (String pointer : pointers) {
+            List<String> tokens = parsePointer(pointer);
+            Node node = root;
+            for (String token : tokens) {
+                Node child = node.children.get(token);
+                if (child == null) {
+                    child = new Node();
+                    node.children.put(token, child);
+                }
+                node = child;
+            }
+            node.pointer = pointer;
+            node.tokens = tokens;
+        }
+    }
+
+    /**
+     * Read a JSON document and select the values of the pointers
+     * @param in the JSON document, closed once read
+     * @return an object with the value of each pointer found in the document, keyed by pointer
+     * @throws IOException if the document can't be read or is malformed
+     * @throws JSONException if a selected value can't be built
+     */
+    JSObject project(Reader in) throws IOException, JSONException {
+        JSObject result = new JSObject();
+        try (JsonReader reader = new JsonReader(in)) {
+            // Same as parseJSON, which also accepts a bare value as the document
+            reader.setLenient(true);
+            select(reader, root, result);
+        }
+        return result;
+    }
+
+    private void select(JsonReader reader, Node node, JSObject result) throws IOException, JSONException {
+        if (node.pointer != null) {
+            Object value = readValue(reader);
+            result.put(node.pointer, value);
+            resolveDescendants(node, node.tokens.size(), value, result);
+            return;
+        }
+
+        if (node.children.isEmpty()) {
+            reader.skipValue();
+            return;
+        }
+
+        JsonToken token = reader.peek();
+        if (token == JsonToken.BEGIN_OBJECT) {
+            reader.beginObject();
+            while (reader.hasNext()) {
+                Node child = node.children.get(reader.nextName());
+                if (child != null) {
+                    select(reader, child, result);
+                } else {
+                    reader.skipValue();
+                }
+            }
+            reader.endObject();
+        } else if (token == JsonToken.BEGIN_ARRAY) {
+            reader.beginArray();
+            for (int index = 0; reader.hasNext(); index++) {
+                Node child = node.children.get(String.valueOf(index));
+                if (child != null) {
+                    select(reader, child, result);
+                } else {
+                    reader.skipValue();
+                }
+            }
+            reader.endArray();
+        } else {
+            reader.skipValue();
+        }
+    }
+
+    /**
+     * Resolve the pointers below a node against the value already read for it
+     */
+    private void resolveDescendants(Node node, int depth, Object value, JSObject result) throws JSONException {
+        for (Node child : node.children.values()) {
+            if (child.pointer != null) {
+                Object childValue = resolve(value, child.tokens, depth);
+                if (childValue != null) {
+                    result.put(child.pointer, childValue);
+                }
+            }
+            resolveDescendants(child, depth, value, result);
+        }
+    }
+
+    private static Object resolve(Object value, List<String> tokens, int start) {
+        for (int i = start; i < tokens.size() && value != null; i++) {
+            String token = tokens.get(i);
+            if (value instanceof JSONObject) {
+                value = ((JSONObject) value).opt(token);
+            } else if (value instanceof JSONArray) {
+                try {
+                    value = ((JSONArray) value).opt(Integer.parseInt(token));
+                } catch (NumberFormatException e) {
+                    return null;
+                }
+            } else {
+                return null;
+            }
+        }
+        return value;
+    }
+
+    private static Object readValue(JsonReader reader) throws IOException, JSONException {
+        switch (reader.peek()) {
+            case BEGIN_OBJECT:
+                JSObject object = new JSObject();
+                reader.beginObject();
+                while (reader.hasNext()) {
+                    String name = reader.nextName();
+                    object.put(name, readValue(reader));
+                }
+                reader.endObject();
+                return object;
+            case BEGIN_ARRAY:
+                JSArray array = new JSArray();
+                reader.beginArray();
+                while (reader.hasNext()) {
+                    array.put(readValue(reader));
+                }
+                reader.endArray();
+                return array;
+            case BOOLEAN:
+                return reader.nextBoolean();
+            case NUMBER:
+                return parseNumber(reader.nextString());
+            case NULL:
+                reader.nextNull();
+                return JSONObject.NULL;
+            default:
+                return reader.nextString();
+        }
+    }
+
+    private static Object parseNumber(String number) {
+        if (number.indexOf('.') < 0 && number.indexOf('e') < 0 && number.indexOf('E') < 0) {
+            try {
+                return Long.parseLong(number);
+            } catch (NumberFormatException e) {
+                // Too large for a long
+            }
+        }
+        return Double.parseDouble(number);
+    }
+
+    private static List<String> parsePointer(String pointer) {
+        List<String> tokens = new ArrayList<>();
+        if (pointer.isEmpty()) {
+            return tokens;
+        }
+        if (pointer.charAt(0) != '/') {
+            throw new IllegalArgumentException("Invalid JSON pointer: " + pointer);
+        }
+        for (String token : pointer.substring(1).split("/", -1)) {
+            tokens.add(token.replace("~1", "/").replace("~0", "~"));
+        }
+        return tokens;
+    }
+}
@@ -0,0 +1,131 @@
+package com.getcapacitor.util;
+
+import java.net.URLConnection;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Resolves the MIME type of locally served files from their extension.
+ * Resolved types are cached per path, and the file content is never read.
+ */
+public class AssetMimeTypes {
+
+    private static final int CACHE_SIZE = 512;
+
+    // Used as a cache value for paths with no known type, as the cache can't hold nulls
+    private static final String UNKNOWN = "";
+
+    private static final Map<String, String> EXTENSIONS = new HashMap<>();
+
+    private static final ConcurrentHashMap<String, String> cache = new ConcurrentHashMap<>();
+
+    static {
+        // Documents and scripts
+        EXTENSIONS.put("html", "text/html");
+        EXTENSIONS.put("htm", "text/html");
+        EXTENSIONS.put("js", "application/javascript");
+        EXTENSIONS.put("mjs", "application/javascript");
+        EXTENSIONS.put("cjs", "application/javascript");
+        EXTENSIONS.put("css", "text/css");
+        EXTENSIONS.put("json", "application/json");
+        EXTENSIONS.put("map", "application/json");
+        EXTENSIONS.put("wasm", "application/wasm");
+        EXTENSIONS.put("txt", "text/plain");
+        EXTENSIONS.put("atlas", "text/plain");
+        EXTENSIONS.put("xml", "application/xml");
+        EXTENSIONS.put("vtt", "text/vtt");
+        EXTENSIONS.put("pdf", "application/pdf");
+        EXTENSIONS.put("zip", "application/zip");
+        EXTENSIONS.put("bin", "application/octet-stream");
+
+        // Images and textures
+        EXTENSIONS.put("png", "image/png");
+        EXTENSIONS.put("jpg", "image/jpeg");
+        EXTENSIONS.put("jpeg", "image/jpeg");
+        EXTENSIONS.put("gif", "image/gif");
+        EXTENSIONS.put("webp", "image/webp");
+        EXTENSIONS.put("avif", "image/avif");
+        EXTENSIONS.put("svg", "image/svg+xml");
+        EXTENSIONS.put("ico", "image/x-icon");
+        EXTENSIONS.put("bmp", "image/bmp");
+        EXTENSIONS.put("ktx2", "image/ktx2");
+        EXTENSIONS.put("basis", "application/octet-stream");
+        EXTENSIONS.put("glb", "model/gltf-binary");
+        EXTENSIONS.put("gltf", "model/gltf+json");
+
+        // Audio and video
+        EXTENSIONS.put("mp3", "audio/mpeg");
+        EXTENSIONS.put("m4a", "audio/mp4");
+        EXTENSIONS.put("aac", "audio/aac");
+        EXTENSIONS.put("ogg", "audio/ogg");
+        EXTENSIONS.put("opus", "audio/ogg");
+        EXTENSIONS.put("wav", "audio/wav");
+        EXTENSIONS.put("flac", "audio/flac");
+        EXTENSIONS.put("mp4", "video/mp4");
+        EXTENSIONS.put("webm", "video/webm");
+        EXTENSIONS.put("mov", "video/quicktime");
+        EXTENSIONS.put("m3u8", "application/vnd.apple.mpegurl");
+
+        // Fonts
+        EXTENSIONS.put("woff", "font/woff");
+        EXTENSIONS.put("woff2", "font/woff2");
+        EXTENSIONS.put("ttf", "font/ttf");
+        EXTENSIONS.put("otf", "font/otf");
+    }
+
+    /**
+     * Get the MIME type for a path, or null if the type is unknown.
+     * @param path the path of the file
+     */
+    public static String getMimeType(String path) {
+        if (path == null) {
+            return null;
+        }
+
+        String mimeType = cache.get(path);
+        if (mimeType == null) {
+            mimeType = resolve(path);
+            if (cache.size() >= CACHE_SIZE) {
+                cache.clear();
+            }
+            cache.put(path, mimeType != null ? mimeType : UNKNOWN);
+        }
+
+        return mimeType == null || mimeType.isEmpty() ? null : mimeType;
+    }
+
+    /**
+     * Whether files of the given type are worth serving with a content encoding.
+     * Already compressed media and archives are not.
+     * @param mimeType the MIME type of the file
+     */
+    public static boolean isCompressible(String mimeType) {
+        if (mimeType == null) {
+            return false;
+        }
+        return (
+            mimeType.startsWith("text/") ||
+            mimeType.equals("application/javascript") ||
+            mimeType.equals("application/json") ||
+            mimeType.equals("application/wasm") ||
+            mimeType.equals("application/xml") ||
+            mimeType.equals("image/svg+xml") ||
+            mimeType.equals("model/gltf+json")
+        );
+    }
+
+    private static String resolve(String path) {
+        int periodIndex = path.lastIndexOf('.');
+        if (periodIndex >= 0 && periodIndex > path.lastIndexOf('/')) {
+            String mimeType = EXTENSIONS.get(path.substring(periodIndex + 1).toLowerCase(Locale.ROOT));
+            if (mimeType != null) {
+                return mimeType;
+            }
+        }
+
+        // Less common extensions are left to the platform name map
+        return URLConnection.guessContentTypeFromName(path);
+    }
+}
@@ -4,6 +4,7 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
 
 public interface HostMask {
     boolean matches(String host);
@@ -23,13 +24,14 @@ public interface HostMask {
 
     class Simple implements HostMask {
 
-        private final List<String> maskParts;
+        // Mask labels, right-most label first
+        private final String[] maskParts;
 
         private Simple(List<String> maskParts) {
             if (maskParts == null) {
                 throw new IllegalArgumentException("Mask parts can not be null");
             }
-            this.maskParts = maskParts;
+            this.maskParts = maskParts.toArray(new String[0]);
         }
 
         static Simple parse(String mask) {
@@ -42,37 +44,84 @@ public interface HostMask {
             if (host == null) {
                 return false;
             }
-            List<String> hostParts = Util.splitAndReverse(host);
-            int hostSize = hostParts.size();
-            int maskSize = maskParts.size();
+            int hostSize = Util.countLabels(host);
+            int maskSize = maskParts.length;
             if (maskSize > 1 && hostSize != maskSize) {
                 return false;
             }
 
             int minSize = Math.min(hostSize, maskSize);
 
+            // Walk the host labels right to left without splitting the string
+            int end = Util.trimmedLength(host);
             for (int i = 0; i < minSize; i++) {
-                String maskPart = maskParts.get(i);
-                String hostPart = hostParts.get(i);
-                if (!Util.matches(maskPart, hostPart)) {
+                int start = host.lastIndexOf('.', end - 1) + 1;
+                if (!Util.matches(maskParts[i], host, start, end)) {
                     return false;
                 }
+                end = start - 1;
             }
             return true;
         }
     }
 
+    /**
+     * Matches a host against any of a list of masks. Simple masks are compiled
+     * into a trie of reversed labels, so a host is matched in a single right to
+     * left scan regardless of the number of masks. Recent results are cached.
+     */
     class Any implements HostMask {
 
-        private final List<? extends HostMask> masks;
+        private static final int CACHE_SIZE = 128;
+
+        private final LabelNode root = new LabelNode();
+        private final List<HostMask> otherMasks = new ArrayList<>();
+        private final ConcurrentHashMap<String, Boolean> cache = new ConcurrentHashMap<>();
+
+        // Masks without labels match every host, single label masks also match hosts without labels
+        private boolean matchesAll = false;
+        private boolean matchesEmpty = false;
 
         Any(List<? extends HostMask> masks) {
-            this.masks = masks;
+            for (HostMask mask : masks) {
+                if (mask instanceof Simple) {
+                    add(((Simple) mask).maskParts);
+                } else {
+                    otherMasks.add(mask);
+                }
+            }
         }
 
         @Override
         public boolean matches(String host) {
-            for (HostMask mask : masks) {
+            if (host == null) {
+                return false;
+            }
+
+            Boolean cached = cache.get(host);
+            if (cached != null) {
+                return cached;
+            }
+
+            boolean result = matchesUncached(host);
+            if (cache.size() >= CACHE_SIZE) {
+                cache.clear();
+            }
+            cache.put(host, result);
+            return result;
+        }
+
+        private boolean matchesUncached(String host) {
+            if (matchesAll) {
+                return true;
+            }
+
+            int hostSize = Util.countLabels(host);
+            if (hostSize == 0 ? matchesEmpty : root.matches(host, Util.trimmedLength(host), 0, hostSize)) {
+                return true;
+            }
+
+            for (HostMask mask : otherMasks) {
                 if (mask.matches(host)) {
                     return true;
                 }
@@ -80,6 +129,22 @@ public interface HostMask {
             return false;
         }
 
+        private void add(String[] maskParts) {
+            if (maskParts.length == 0) {
+                matchesAll = true;
+                return;
+            }
+            if (maskParts.length == 1) {
+                matchesEmpty = true;
+            }
+
+            LabelNode node = root;
+            for (String part : maskParts) {
+                node = node.child(part);
+            }
+            node.terminal = true;
+        }
+
         static Any parse(String... rawMasks) {
             List<HostMask.Simple> masks = new ArrayList<>();
             for (String raw : rawMasks) {
@@ -87,6 +152,61 @@ public interface HostMask {
             }
             return new Any(masks);
         }
+
+        /**
+         * A trie node for one label position, counted from the right of the host.
+         */
+        private static class LabelNode {
+
+            private String[] labels = new String[0];
+            private LabelNode[] children = new LabelNode[0];
+            private LabelNode wildcard;
+            private boolean terminal;
+
+            private LabelNode child(String label) {
+                if ("*".equals(label)) {
+                    if (wildcard == null) {
+                        wildcard = new LabelNode();
+                    }
+                    return wildcard;
+                }
+                for (int i = 0; i < labels.length; i++) {
+                    if (labels[i].equalsIgnoreCase(label)) {
+                        return children[i];
+                    }
+                }
+                labels = Arrays.copyOf(labels, labels.length + 1);
+                children = Arrays.copyOf(children, children.length + 1);
+                labels[labels.length - 1] = label;
+                children[children.length - 1] = new LabelNode();
+                return children[children.length - 1];
+            }
+
+            /**
+             * @param host the host being matched
+             * @param end the end index of the next label to match
+             * @param depth the number of labels matched so far
+             * @param hostSize the number of labels in the host
+             */
+            private boolean matches(String host, int end, int depth, int hostSize) {
+                // A single label mask only compares the right-most label,
+                // longer masks must cover the whole host
+                if (terminal && (depth == 1 || depth == hostSize)) {
+                    return true;
+                }
+                if (depth >= hostSize) {
+                    return false;
+                }
+
+                int start = host.lastIndexOf('.', end - 1) + 1;
+                for (int i = 0; i < labels.length; i++) {
+                    if (Util.matches(labels[i], host, start, end) && children[i].matches(host, start - 1, depth + 1, hostSize)) {
+                        return true;
+                    }
+                }
+                return wildcard != null && wildcard.matches(host, start - 1, depth + 1, hostSize);
+            }
+        }
     }
 
     class Nothing implements HostMask {
@@ -111,6 +231,20 @@ public interface HostMask {
             }
         }
 
+        /**
+         * Same as {@link #matches(String, String)} against the label
+         * <code>string[start, end)</code>, without creating a substring.
+         */
+        static boolean matches(String mask, String string, int start, int end) {
+            if (mask == null) {
+                return false;
+            } else if ("*".equals(mask)) {
+                return true;
+            } else {
+                return mask.length() == end - start && string.regionMatches(true, start, mask, 0, end - start);
+            }
+        }
+
         static List<String> splitAndReverse(String string) {
             if (string == null) {
                 throw new IllegalArgumentException("Can not split null argument");
@@ -119,5 +253,37 @@ public interface HostMask {
             Collections.reverse(parts);
             return parts;
         }
+
+        /**
+         * The length of the string without trailing dots, which
+         * {@link String#split(String)} drops as empty labels.
+         */
+        static int trimmedLength(String string) {
+            int end = string.length();
+            while (end > 0 && string.charAt(end - 1) == '.') {
+                end--;
+            }
+            return end;
+        }
+
+        /**
+         * The number of labels {@link #splitAndReverse(String)} would return for the string.
+         */
+        static int countLabels(String string) {
+            if (string.isEmpty()) {
+                return 1;
+            }
+            int end = trimmedLength(string);
+            if (end == 0) {
+                return 0;
+            }
+            int count = 1;
+            for (int i = 0; i < end; i++) {
+                if (string.charAt(i) == '.') {
+                    count++;
+                }
+            }
+            return count;
+        }
     }
 }
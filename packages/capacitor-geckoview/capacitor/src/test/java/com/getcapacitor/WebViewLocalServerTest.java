@@ -0,0 +1,44 @@
+package com.getcapacitor;
+
+import static org.junit.Assert.*;
+
+import android.net.Uri;
+import java.io.InputStream;
+import java.util.Map;
+import org.junit.Test;
+
+public class WebViewLocalServerTest {
+
+    private final WebViewLocalServer.PathHandler handler = new WebViewLocalServer.PathHandler() {
+        @Override
+        public InputStream handle(Uri url) {
+            return null;
+        }
+    };
+
+    @Test
+    public void rangeResponseHeadersGiveTheRange() {
+        Map<String, String> headers = WebViewLocalServer.getRangeResponseHeaders(handler.getResponseHeaders(), "bytes=0-99", 1000);
+
+        assertEquals("bytes", headers.get("Accept-Ranges"));
+        assertEquals("bytes 0-99/1000", headers.get("Content-Range"));
+        assertEquals("no-cache", headers.get("Cache-Control"));
+    }
+
+    @Test
+    public void rangeResponseHeadersOfAnOpenRangeEndAtTheLength() {
+        Map<String, String> headers = WebViewLocalServer.getRangeResponseHeaders(handler.getResponseHeaders(), "bytes=500-", 1000);
+
+        assertEquals("bytes 500-999/1000", headers.get("Content-Range"));
+    }
+
+    @Test
+    public void fullResponseAfterARangeHasNoContentRange() {
+        WebViewLocalServer.getRangeResponseHeaders(handler.getResponseHeaders(), "bytes=0-99", 1000);
+
+        // The headers of the handler's next 200 response
+        Map<String, String> headers = handler.getResponseHeaders();
+        assertNull(headers.get("Content-Range"));
+        assertNull(headers.get("Accept-Ranges"));
+    }
+}
@@ -0,0 +1,157 @@
+package com.getcapacitor.plugin;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.lang.reflect.Field;
+import java.net.URI;
+import java.nio.file.Files;
+import java.util.Collection;
+import java.util.List;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class CookieJarTest {
+
+    private File directory;
+    private CookieJar jar;
+
+    @Before
+    public void setUp() throws Exception {
+        directory = Files.createTempDirectory("cookies").toFile();
+        jar = new CookieJar(new File(directory, "cookies.json"));
+    }
+
+    @After
+    public void tearDown() {
+        jar.flush();
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        directory.delete();
+    }
+
+    @Test
+    public void parseDefaultsToHostOnlyAndRequestDirectory() {
+        CookieJar.Cookie cookie = CookieJar.parse(URI.create("https://www.example.com/a/b"), "id=1", 0);
+
+        assertEquals("id", cookie.name);
+        assertEquals("1", cookie.value);
+        assertEquals("www.example.com", cookie.domain);
+        assertEquals("/a", cookie.path);
+        assertTrue(cookie.hostOnly);
+        assertFalse(cookie.isPersistent());
+    }
+
+    @Test
+    public void parseRejectsMalformedAndForeignDomains() {
+        URI uri = URI.create("https://www.example.com/");
+
+        assertNull(CookieJar.parse(uri, "=1", 0));
+        assertNull(CookieJar.parse(uri, "novalue", 0));
+        assertNull(CookieJar.parse(uri, "id=1; Domain=other.com", 0));
+        assertNotNull(CookieJar.parse(uri, "id=1; Domain=.example.com", 0));
+    }
+
+    @Test
+    public void parseRejectsPublicSuffixDomains() {
+        assertNull(CookieJar.parse(URI.create("https://www.example.com/"), "id=1; Domain=com", 0));
+        assertNull(CookieJar.parse(URI.create("https://www.example.com/"), "id=1; Domain=.com", 0));
+        assertNull(CookieJar.parse(URI.create("https://shop.example.co.uk/"), "id=1; Domain=co.uk", 0));
+        assertNotNull(CookieJar.parse(URI.create("https://shop.example.co.uk/"), "id=1; Domain=example.co.uk", 0));
+    }
+
+    @Test
+    public void parseAcceptsOnlyTheHostAsDomainOfAnIpAddress() {
+        URI uri = URI.create("http://192.168.1.20/");
+
+        assertNull(CookieJar.parse(uri, "id=1; Domain=168.1.20", 0));
+        assertNull(CookieJar.parse(uri, "id=1; Domain=1.20", 0));
+        assertNotNull(CookieJar.parse(uri, "id=1; Domain=192.168.1.20", 0));
+    }
+
+    @Test
+    public void parseMaxAgeOverridesExpires() {
+        CookieJar.Cookie cookie = CookieJar.parse(
+            URI.create("https://example.com/"),
+            "id=1; Expires=Wed, 21 Oct 2015 07:28:00 GMT; Max-Age=60",
+            1000
+        );
+
+        assertEquals(61000, cookie.expiresAt);
+    }
+
+    @Test
+    public void getMatchesDomainPathAndScheme() {
+        jar.add(URI.create("https://example.com/"), "shared=1; Domain=example.com; Path=/");
+        jar.add(URI.create("https://example.com/"), "host=1; Path=/");
+        jar.add(URI.create("https://example.com/"), "secure=1; Path=/; Secure");
+        jar.add(URI.create("https://example.com/"), "docs=1; Path=/docs");
+
+        assertEquals("shared=1", jar.getCookieHeader(URI.create("http://www.example.com/")));
+        assertEquals("host=1; shared=1", sortedHeader(jar.get(URI.create("http://example.com/documents"))));
+        assertEquals("docs=1; host=1; secure=1; shared=1", sortedHeader(jar.get(URI.create("https://example.com/docs/page"))));
+        assertNull(jar.getCookieHeader(URI.create("https://other.com/")));
+    }
+
+    @Test
+    public void getOrdersLongestPathFirst() {
+        jar.add(URI.create("https://example.com/"), "root=1; Path=/");
+        jar.add(URI.create("https://example.com/"), "deep=1; Path=/a/b");
+        jar.add(URI.create("https://example.com/"), "middle=1; Path=/a");
+
+        assertEquals("deep=1; middle=1; root=1", jar.getCookieHeader(URI.create("https://example.com/a/b/c")));
+    }
+
+    @Test
+    public void replacingACookieKeepsASingleExpiry() throws Exception {
+        URI uri = URI.create("https://example.com/");
+        for (int i = 0; i < 100; i++) {
+            jar.add(uri, "session=" + i + "; Max-Age=3600");
+        }
+
+        assertEquals("session=99", jar.getCookieHeader(uri));
+        assertEquals(1, expiries().size());
+    }
+
+    @Test
+    public void expiredCookieRemovesThePreviousOne() throws Exception {
+        URI uri = URI.create("https://example.com/");
+        jar.add(uri, "session=1; Max-Age=3600");
+        jar.add(uri, "session=; Max-Age=0");
+
+        assertNull(jar.getCookieHeader(uri));
+        assertEquals(0, expiries().size());
+    }
+
+    @Test
+    public void persistentCookiesAreSavedAndLoaded() {
+        URI uri = URI.create("https://example.com/");
+        File file = new File(directory, "saved.json");
+        CookieJar saved = new CookieJar(file);
+        saved.add(uri, "persistent=1; Max-Age=3600");
+        saved.add(uri, "session=1");
+        saved.flush();
+
+        assertEquals("persistent=1", new CookieJar(file).getCookieHeader(uri));
+    }
+
+    private Collection<?> expiries() throws Exception {
+        Field field = CookieJar.class.getDeclaredField("expiries");
+        field.setAccessible(true);
+        return (Collection<?>) field.get(jar);
+    }
+
+    private static String sortedHeader(List<CookieJar.Cookie> cookies) {
+        String[] pairs = new String[cookies.size()];
+        for (int i = 0; i < pairs.length; i++) {
+            pairs[i] = cookies.get(i).name + "=" + cookies.get(i).value;
+        }
+        java.util.Arrays.sort(pairs);
+        return String.join("; ", pairs);
+    }
+}
@@ -8,8 +8,14 @@ import android.util.Log
 
 import com.getcapacitor.*
 import com.getcapacitor.annotation.CapacitorPlugin
+import com.getcapacitor.annotation.EventPolicy
 
-@CapacitorPlugin(name = "MemoryPressure")
+@CapacitorPlugin(
+    name = "MemoryPressure",
+    eventPolicies = [
+        EventPolicy(event = "lowMemoryWarning", mode = EventPolicy.Mode.LATEST, interval = 1000)
+    ]
+)
 class MemoryPressurePlugin : Plugin() {
     private val implementation = MemoryPressure()
     private val broadcastReceiver = object: BroadcastReceiver() {
@@ -0,0 +1,492 @@
+package tv.jbcz.resourceloader
+
+import android.util.Log
+import java.io.File
+import java.io.FileInputStream
+import java.io.FileOutputStream
+import java.io.IOException
+import java.io.InputStream
+import java.io.RandomAccessFile
+import java.net.HttpURLConnection
+import java.net.URL
+import java.nio.ByteBuffer
+import java.nio.channels.FileChannel
+import java.security.MessageDigest
+import java.util.Properties
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.CopyOnWriteArraySet
+import java.util.concurrent.PriorityBlockingQueue
+import java.util.concurrent.ThreadPoolExecutor
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicBoolean
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.atomic.AtomicLong
+
+/**
+ * Downloads files in process over a bounded pool of connections.
+ *
+ * Files served with range support are split in chunks downloaded in parallel into a
+ * `.part` file, with the progress of every chunk kept next to it so an interrupted
+ * download resumes where it stopped. Other files are streamed over a single connection.
+ * Waiting work is taken by priority, then in the order it was enqueued.
+ *
+ * The md5 of every file is computed while it is written: bytes are hashed as they arrive
+ * in order, and the bytes chunks wrote ahead of that are read back, still cached, once
+ * the chunks before them are done.
+ */
+class DownloadEngine(
+    maxConnections: Int = 4,
+    private val maxChunksPerFile: Int = 4,
+    private val chunkSize: Long = 4L * 1024 * 1024
+) {
+    companion object {
+        @JvmStatic
+        private val TAG: String = "DownloadEngine"
+
+        // Same codes as DataFile.statusCode
+        const val STATUS_SUCCESSFUL = 0
+        const val STATUS_RUNNING = 2
+        const val STATUS_FAILED = -1
+
+        private const val CONNECT_TIMEOUT = 15000
+        private const val READ_TIMEOUT = 30000
+        private const val MAX_ATTEMPTS = 3
+        private const val SAVE_INTERVAL = 1000L
+        private const val BUFFER_SIZE = 32 * 1024
+    }
+
+    interface Listener {
+        fun onComplete(task: Task)
+        fun onError(task: Task)
+    }
+
+    class Task internal constructor(
+        val resourceId: String,
+        val uri: String,
+        val file: File,
+        val priority: Int
+    ) {
+        @Volatile
+        var status = STATUS_RUNNING
+            internal set
+
+        @Volatile
+        var total = 0L
+            internal set
+
+        @Volatile
+        var reason: String? = null
+            internal set
+
+        /**
+         * The md5 of the downloaded file, once it is downloaded
+         */
+        @Volatile
+        var md5: String? = null
+            internal set
+
+        internal val downloaded = AtomicLong()
+        internal val finished = AtomicBoolean(false)
+        internal val connections = CopyOnWriteArraySet<HttpURLConnection>()
+
+        val current: Long
+            get() = downloaded.get()
+
+        internal val partFile = File(file.path + ".part")
+        internal val stateFile = File(file.path + ".part.state")
+
+        fun isActive() = !finished.get()
+    }
+
+    /**
+     * The chunks of a ranged download, saved next to the part file
+     */
+    private class PartState(val length: Long, val validator: String?, val chunkLength: Long) {
+        val done: LongArray = LongArray(((length + chunkLength - 1) / chunkLength).toInt().coerceAtLeast(1))
+        val remaining = AtomicInteger(done.size)
+
+        @Volatile
+        var lastSave = 0L
+
+        // Guarded by done, the digest of the bytes before hashed. While catchingUp, the
+        // digest belongs to the thread catching up, which reads the part file without done
+        private val digest = MessageDigest.getInstance("MD5")
+        private var hashed = 0L
+        private var catchingUp = false
+
+        // Held while catching up, so a single thread reads the part file with readBuffer
+        private val catchUpLock = Any()
+        private val readBuffer: ByteBuffer by lazy { ByteBuffer.allocate(BUFFER_SIZE) }
+
+        fun start(index: Int) = index * chunkLength
+        fun end(index: Int) = minOf(length, (index + 1) * chunkLength) - 1
+        fun isDone(index: Int) = start(index) + done[index] > end(index)
+
+        /**
+         * Record bytes of a chunk written to the part file at position. Bytes right after
+         * the ones hashed are hashed from buffer, the others are read back by [catchUp]
+         */
+        fun written(index: Int, position: Long, buffer: ByteArray, count: Int) {
+            synchronized(done) {
+                done[index] += count.toLong()
+                if (!catchingUp && hashed == position) {
+                    digest.update(buffer, 0, count)
+                    hashed += count
+                }
+            }
+        }
+
+        /**
+         * Hash the bytes already written right after the ones hashed, reading them back
+         * from the part file. Called once a chunk is complete, while the other chunks are
+         * written: the bytes they write in order are then hashed as they are written.
+         */
+        fun catchUp(part: FileChannel) {
+            synchronized(catchUpLock) {
+                var from = synchronized(done) {
+                    catchingUp = true
+                    hashed
+                }
+                try {
+                    while (true) {
+                        val available = synchronized(done) {
+                            val index = (hashed / chunkLength).toInt()
+                            val end = if (hashed < length) start(index) + done[index] else hashed
+                            if (hashed >= end) catchingUp = false
+                            end
+                        }
+                        if (from >= available) return
+                        readBuffer.clear()
+                        readBuffer.limit(minOf(BUFFER_SIZE.toLong(), available - from).toInt())
+                        val count = part.read(readBuffer, from)
+                        if (count <= 0) throw IOException("Unable to read the part file at $from")
+                        digest.update(readBuffer.array(), 0, count)
+                        from += count
+                        synchronized(done) { hashed = from }
+                    }
+                } finally {
+                    synchronized(done) { catchingUp = false }
+                }
+            }
+        }
+
+        fun md5(): String? = synchronized(done) {
+            if (hashed == length) digest.toHex() else null
+        }
+
+        /**
+         * Write the state to file. The chunk threads save it too, so saves are serialized:
+         * they share the temporary file renamed in place of file.
+         */
+        fun save(file: File) {
+            val properties = Properties()
+            properties.setProperty("length", length.toString())
+            properties.setProperty("chunkLength", chunkLength.toString())
+            validator?.let { properties.setProperty("validator", it) }
+            synchronized(this) {
+                synchronized(done) {
+                    done.forEachIndexed { index, bytes -> properties.setProperty("done.$index", bytes.toString()) }
+                }
+                val tmp = File(file.path + ".tmp")
+                FileOutputStream(tmp).use { properties.store(it, null) }
+                if (!tmp.renameTo(file)) throw IOException("Unable to replace $file")
+                lastSave = System.currentTimeMillis()
+            }
+        }
+
+        companion object {
+            fun load(file: File): PartState? = try {
+                val properties = Properties()
+                FileInputStream(file).use { properties.load(it) }
+                PartState(
+                    properties.getProperty("length").toLong(),
+                    properties.getProperty("validator"),
+                    properties.getProperty("chunkLength").toLong()
+                ).apply {
+                    for (index in done.indices) {
+                        done[index] = properties.getProperty("done.$index", "0").toLong()
+                    }
+                    remaining.set(done.indices.count { !isDone(it) })
+                }
+            } catch (e: Exception) {
+                null
+            }
+        }
+    }
+
+    private abstract inner class Job(val task: Task) : Runnable, Comparable<Job> {
+        private val sequence = sequencer.incrementAndGet()
+
+        override fun compareTo(other: Job): Int =
+            if (task.priority != other.task.priority) other.task.priority.compareTo(task.priority)
+            else sequence.compareTo(other.sequence)
+    }
+
+    private val sequencer = AtomicLong()
+    private val tasks = ConcurrentHashMap<String, Task>()
+
+    private val executor = ThreadPoolExecutor(
+        maxConnections, maxConnections, 30, TimeUnit.SECONDS, PriorityBlockingQueue<Runnable>()
+    ) { runnable ->
+        Thread(runnable, "ResourceDownload").apply { isDaemon = true }
+    }.apply { allowCoreThreadTimeOut(true) }
+
+    var listener: Listener? = null
+
+    /**
+     * Start downloading a file, or return the download already running for the resource
+     */
+    fun enqueue(resourceId: String, uri: String, file: File, priority: Int = 0): Task {
+        synchronized(tasks) {
+            tasks[resourceId]?.let {
+                if (it.uri == uri && it.file == file && it.isActive()) return it
+                cancel(resourceId)
+            }
+            val task = Task(resourceId, uri, file, priority)
+            tasks[resourceId] = task
+            executor.execute(object : Job(task) {
+                override fun run() = start(task)
+            })
+            return task
+        }
+    }
+
+    fun get(resourceId: String): Task? = tasks[resourceId]
+
+    /**
+     * Stop a download, the part already downloaded is kept to resume it later
+     */
+    fun cancel(resourceId: String) {
+        tasks.remove(resourceId)?.let { task ->
+            if (task.finished.compareAndSet(false, true)) {
+                task.status = STATUS_FAILED
+                task.reason = "Cancelled"
+                task.connections.forEach { it.disconnect() }
+            }
+        }
+    }
+
+    fun shutdown() {
+        tasks.keys.toList().forEach { cancel(it) }
+        executor.shutdownNow()
+    }
+
+    private fun start(task: Task) {
+        if (!task.isActive()) return
+        try {
+            task.file.parentFile?.takeIf { !it.exists() }?.mkdirs()
+            val saved = if (task.partFile.exists()) PartState.load(task.stateFile) else null
+
+            val connection = open(task, "bytes=0-", null)
+            val status = connection.responseCode
+            if (status == HttpURLConnection.HTTP_PARTIAL) {
+                val length = parseTotal(connection.getHeaderField("Content-Range"))
+                if (length == null) {
+                    release(task, connection)
+                    fail(task, "Invalid Content-Range:${connection.getHeaderField("Content-Range")}")
+                    return
+                }
+                val validator = connection.getHeaderField("ETag") ?: connection.getHeaderField("Last-Modified")
+                task.total = length
+
+                if (saved != null && saved.length == length && saved.validator != null && saved.validator == validator) {
+                    // Resume the chunks left, the connection only served to check the file is unchanged
+                    release(task, connection)
+                    task.downloaded.set(saved.done.sum())
+                    RandomAccessFile(task.partFile, "r").use { saved.catchUp(it.channel) }
+                    for (index in saved.done.indices) {
+                        if (!saved.isDone(index)) submitChunk(task, saved, index)
+                    }
+                    if (saved.remaining.get() == 0) complete(task, saved)
+                    return
+                }
+
+                val chunks = minOf(maxChunksPerFile.toLong(), maxOf(1L, (length + chunkSize - 1) / chunkSize))
+                val state = PartState(length, validator, maxOf(1L, (length + chunks - 1) / chunks))
+                RandomAccessFile(task.partFile, "rw").use { it.setLength(length) }
+                state.save(task.stateFile)
+                for (index in 1 until state.done.size) submitChunk(task, state, index)
+                // The first chunk is read from the connection already open
+                runChunk(task, state, 0, connection)
+            } else if (status == HttpURLConnection.HTTP_OK) {
+                streamWhole(task, connection)
+            } else {
+                release(task, connection)
+                fail(task, "HTTP $status")
+            }
+        } catch (e: IOException) {
+            fail(task, e.localizedMessage ?: e.toString())
+        }
+    }
+
+    private fun submitChunk(task: Task, state: PartState, index: Int) {
+        executor.execute(object : Job(task) {
+            override fun run() = runChunk(task, state, index, null)
+        })
+    }
+
+    private fun runChunk(task: Task, state: PartState, index: Int, opened: HttpURLConnection?) {
+        var connection = opened
+        var attempt = 0
+        while (task.isActive()) {
+            try {
+                if (connection == null) {
+                    val from = state.start(index) + state.done[index]
+                    connection = open(task, "bytes=$from-${state.end(index)}", state.validator)
+                    if (connection.responseCode != HttpURLConnection.HTTP_PARTIAL) {
+                        val status = connection.responseCode
+                        release(task, connection)
+                        // A full response to If-Range means the file changed, start over next time
+                        task.stateFile.delete()
+                        fail(task, "HTTP $status for range")
+                        return
+                    }
+                }
+                readChunk(task, state, index, connection)
+                release(task, connection)
+                if (state.remaining.decrementAndGet() == 0) complete(task, state)
+                return
+            } catch (e: IOException) {
+                connection?.let { release(task, it) }
+                connection = null
+                if (!task.isActive()) {
+                    // Cancelled or failed elsewhere, keep what was read to resume
+                    saveQuietly(task, state)
+                    return
+                }
+                if (++attempt >= MAX_ATTEMPTS) {
+                    saveQuietly(task, state)
+                    fail(task, e.localizedMessage ?: e.toString())
+                    return
+                }
+                Log.i(TAG, "retry chunk $index of ${task.uri}: ${e.localizedMessage}")
+            }
+        }
+    }
+
+    private fun readChunk(task: Task, state: PartState, index: Int, connection: HttpURLConnection) {
+        val end = state.end(index)
+        RandomAccessFile(task.partFile, "rw").use { out ->
+            connection.inputStream.use { input ->
+                var position = state.start(index) + state.done[index]
+                out.seek(position)
+                val buffer = ByteArray(BUFFER_SIZE)
+                while (position <= end && task.isActive()) {
+                    val count = input.read(buffer, 0, minOf(buffer.size.toLong(), end - position + 1).toInt())
+                    if (count == -1) throw IOException("Connection closed at $position of ${state.length}")
+                    out.write(buffer, 0, count)
+                    state.written(index, position, buffer, count)
+                    position += count
+                    task.downloaded.addAndGet(count.toLong())
+                    if (System.currentTimeMillis() - state.lastSave >= SAVE_INTERVAL) saveQuietly(task, state)
+                }
+            }
+            if (task.isActive()) state.catchUp(out.channel)
+        }
+        if (!task.isActive()) {
+            saveQuietly(task, state)
+            throw IOException("Cancelled")
+        }
+    }
+
+    private fun streamWhole(task: Task, connection: HttpURLConnection) {
+        try {
+            task.total = connection.getHeaderField("Content-Length")?.toLongOrNull() ?: -1L
+            task.stateFile.delete()
+            task.downloaded.set(0)
+            val digest = MessageDigest.getInstance("MD5")
+            FileOutputStream(task.partFile).use { out ->
+                connection.inputStream.use { input -> copy(task, input, out, digest) }
+            }
+            task.md5 = digest.toHex()
+        } finally {
+            release(task, connection)
+        }
+        if (!task.isActive()) return
+        if (task.total >= 0 && task.partFile.length() != task.total) {
+            fail(task, "Incomplete download:${task.partFile.length()} of ${task.total}")
+            return
+        }
+        finish(task)
+    }
+
+    private fun copy(task: Task, input: InputStream, out: FileOutputStream, digest: MessageDigest) {
+        val buffer = ByteArray(BUFFER_SIZE)
+        var count = input.read(buffer)
+        while (count != -1 && task.isActive()) {
+            out.write(buffer, 0, count)
+            digest.update(buffer, 0, count)
+            task.downloaded.addAndGet(count.toLong())
+            count = input.read(buffer)
+        }
+    }
+
+    private fun complete(task: Task, state: PartState) {
+        if (!task.isActive()) return
+        task.md5 = state.md5()
+        task.stateFile.delete()
+        finish(task)
+    }
+
+    private fun finish(task: Task) {
+        if (task.file.exists()) task.file.delete()
+        if (!task.partFile.renameTo(task.file)) {
+            fail(task, "Unable to move download to ${task.file}")
+            return
+        }
+        if (task.finished.compareAndSet(false, true)) {
+            task.total = task.file.length()
+            task.status = STATUS_SUCCESSFUL
+            listener?.onComplete(task)
+            tasks.remove(task.resourceId, task)
+        }
+    }
+
+    private fun fail(task: Task, reason: String) {
+        if (task.finished.compareAndSet(false, true)) {
+            Log.i(TAG, "download failed ${task.uri}: $reason")
+            task.status = STATUS_FAILED
+            task.reason = reason
+            task.connections.forEach { it.disconnect() }
+            listener?.onError(task)
+            tasks.remove(task.resourceId, task)
+        }
+    }
+
+    private fun saveQuietly(task: Task, state: PartState) {
+        try {
+            state.save(task.stateFile)
+        } catch (e: IOException) {
+            Log.i(TAG, "unable to save download state: ${e.localizedMessage}")
+        }
+    }
+
+    private fun open(task: Task, range: String, validator: String?): HttpURLConnection {
+        val connection = URL(task.uri).openConnection() as HttpURLConnection
+        task.connections.add(connection)
+        connection.connectTimeout = CONNECT_TIMEOUT
+        connection.readTimeout = READ_TIMEOUT
+        // A cached response would be written to the part file instead of the requested range
+        connection.useCaches = false
+        // Ranges and lengths are of the stored bytes
+        connection.setRequestProperty("Accept-Encoding", "identity")
+        connection.setRequestProperty("Range", range)
+        validator?.let { connection.setRequestProperty("If-Range", it) }
+        if (!task.isActive()) {
+            release(task, connection)
+            throw IOException("Cancelled")
+        }
+        return connection
+    }
+
+    private fun release(task: Task, connection: HttpURLConnection) {
+        task.connections.remove(connection)
+        connection.disconnect()
+    }
+
+    /**
+     * The total length from "bytes 0-99/1000"
+     */
+    private fun parseTotal(contentRange: String?): Long? =
+        contentRange?.substringAfterLast('/', "")?.trim()?.toLongOrNull()
+}
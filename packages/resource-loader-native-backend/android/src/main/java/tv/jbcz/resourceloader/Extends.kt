@@ -1,22 +1,31 @@
 package tv.jbcz.resourceloader
 
-import android.app.DownloadManager
 import android.content.Context
 import android.net.Uri
 import android.os.Environment
 import android.util.Log
-import androidx.core.net.toFile
+import android.webkit.MimeTypeMap
 import androidx.core.net.toUri
+import com.getcapacitor.JSObject
 import fi.iki.elonen.NanoHTTPD
 import tv.jbcz.resourceloader.database.FileInfoDao
 import java.io.File
-import java.io.FileInputStream
 import java.io.InputStream
+import java.io.RandomAccessFile
+import java.nio.MappedByteBuffer
+import java.nio.channels.FileChannel
 
 abstract class HttpServer(context: Context) {
     abstract fun start()
     abstract fun stop()
     abstract fun isRunning(): Boolean
+
+    /**
+     * Log every request with its headers and timing
+     */
+    abstract var debug: Boolean
+    abstract fun metrics(): JSObject
+    abstract fun resetMetrics()
 }
 
 class SimpleHttpWebServer : HttpServer {
@@ -38,12 +47,87 @@ class SimpleHttpWebServer : HttpServer {
     }
 
     override fun isRunning(): Boolean = httpd.isAlive
+
+    override var debug: Boolean
+        get() = httpd.debug
+        set(value) {
+            httpd.debug = value
+        }
+
+    override fun metrics(): JSObject = httpd.metrics.toJSObject()
+
+    override fun resetMetrics() {
+        httpd.metrics.reset()
+    }
 }
 
-class FileDownloadResponse(var file: File, inputStream: InputStream) :
-    NanoHTTPD.Response(Status.OK, "application/octet-stream", inputStream, file.length()) {
+/**
+ * Reads a range of a file through memory mapped windows, so bytes are copied out of the
+ * page cache without a read call per buffer.
+ * Like a FileInputStream, available() returns the number of bytes left.
+ */
+class MappedFileInputStream(file: File, private var position: Long, private var remaining: Long) : InputStream() {
+    companion object {
+        private const val WINDOW_SIZE = 8L * 1024 * 1024
+    }
+
+    private val channel: FileChannel = RandomAccessFile(file, "r").channel
+    private var window: MappedByteBuffer? = null
+
+    private fun window(): MappedByteBuffer? {
+        var current = window
+        if (current == null || !current.hasRemaining()) {
+            if (remaining <= 0) return null
+            current = channel.map(FileChannel.MapMode.READ_ONLY, position, minOf(WINDOW_SIZE, remaining))
+            window = current
+        }
+        return current
+    }
+
+    override fun read(): Int {
+        var buffer = window() ?: return -1
+        position++
+        remaining--
+        return buffer.get().toInt() and 0xff
+    }
+
+    override fun read(b: ByteArray, off: Int, len: Int): Int {
+        if (len == 0) return 0
+        var buffer = window() ?: return -1
+        var count = minOf(len, buffer.remaining())
+        buffer.get(b, off, count)
+        position += count
+        remaining -= count
+        return count
+    }
+
+    override fun skip(n: Long): Long {
+        var skipped = maxOf(0L, minOf(n, remaining))
+        position += skipped
+        remaining -= skipped
+        window = null
+        return skipped
+    }
+
+    override fun available(): Int = minOf(Int.MAX_VALUE.toLong(), remaining).toInt()
+
+    override fun close() {
+        window = null
+        channel.close()
+    }
 }
 
+/**
+ * A body served by the web server, a file or an entry of a zip bundle
+ */
+private class ServedContent(
+    val name: String,
+    val length: Long,
+    val lastModified: Long,
+    val etag: String,
+    val open: (start: Long, count: Long) -> InputStream
+)
+
 class WebServer(var rootFolder: File, port: Int, private val context: Context) : NanoHTTPD(port) {
     val helper: GeneralQueryHelper by lazy {
         GeneralQueryHelper(context)
@@ -52,42 +136,39 @@ class WebServer(var rootFolder: File, port: Int, private val context: Context) :
     companion object {
         @JvmStatic
         val TAG = "${WebServer::class.java.simpleName}__tag"
+
+        // Types of web content MimeTypeMap doesn't know on every Android version
+        private val MIME_TYPES = mapOf(
+            "js" to "application/javascript",
+            "mjs" to "application/javascript",
+            "json" to "application/json",
+            "wasm" to "application/wasm",
+            "webp" to "image/webp",
+            "webm" to "video/webm",
+            "svg" to "image/svg+xml",
+            "woff" to "font/woff",
+            "woff2" to "font/woff2"
+        )
     }
 
-    override fun serve(session: IHTTPSession?) = session?.let { it ->
+    @Volatile
+    var debug = false
+    val metrics = ServerMetrics()
+
+    override fun serve(session: IHTTPSession?) = session?.let { request ->
         var startTime = System.currentTimeMillis()
-        var method = it.method
-        var uri = it.uri.toUri()
-        Log.i(TAG, "uri:$uri , method:$method")
-        it.headers?.forEach { entry -> Log.i(TAG, "header:${entry.key} value:${entry.value}") }
+        var method = request.method
+        var uri = request.uri.toUri()
+        var route = getRoute(uri)
+        if (debug) {
+            Log.i(TAG, "uri:$uri , method:$method")
+            request.headers?.forEach { entry -> Log.i(TAG, "header:${entry.key} value:${entry.value}") }
+        }
         when (method) {
-            Method.GET -> {
-                var file =fetchFile(uri)
-                file?.takeIf { it.exists() }?.let {
+            Method.GET, Method.HEAD -> {
+                fetchContent(uri)?.let {
                     try {
-                        Log.i("ResouceLoaderManager","exists")
-                        var inputStream = FileInputStream(file)
-                        FileDownloadResponse(it, inputStream)
-                    } catch (e: Exception) {
-                        newFixedLengthResponse(
-                            Response.Status.EXPECTATION_FAILED,
-                            "text",
-                            e.localizedMessage
-                        )
-                    }
-                } ?: newFixedLengthResponse(
-                    Response.Status.NOT_FOUND,
-                    "text",
-                    "File is not exists"
-                )
-            }
-            Method.HEAD ->{
-                var file =fetchFile(uri)
-                file?.takeIf { it.exists() }?.let {
-                    try {
-                        newFixedLengthResponse("success").apply {
-                            addHeader("Content-Length","${it.length()}")
-                        }
+                        serveContent(request, it, method == Method.HEAD, route)
                     } catch (e: Exception) {
                         newFixedLengthResponse(
                             Response.Status.EXPECTATION_FAILED,
@@ -103,19 +184,135 @@ class WebServer(var rootFolder: File, port: Int, private val context: Context) :
             }
             else -> super.serve(session)
         }.apply {
-            Log.i(TAG, "cost:${System.currentTimeMillis() - startTime} ms")
+            var elapsed = System.currentTimeMillis() - startTime
+            metrics.record(route, status.requestStatus, elapsed)
+            if (debug) {
+                Log.i(TAG, "cost:$elapsed ms")
+            }
             addHeader("Access-Control-Allow-Origin", "*")
-            setChunkedTransfer(true)
         }
     }
-    private fun fetchFile(uri:Uri):File? = if (uri.pathSegments.size == 1) getResourceFile(uri) else getBundleFile(uri)
+
+    /**
+     * Responses are sent as stored. NanoHTTPD would gzip the text types for clients accepting
+     * it, dropping Content-Length and any Content-Range from a 206 to a chunked stream
+     */
+    override fun useGzipWhenAccepted(r: Response): Boolean = false
+
+    /**
+     * Serve a content with its length, validators and the single byte range requested
+     */
+    private fun serveContent(session: IHTTPSession, content: ServedContent, head: Boolean, route: String): Response {
+        var length = content.length
+        var lastModified = content.lastModified
+        var etag = content.etag
+        var lastModifiedDate = HttpHeaders.formatDate(lastModified)
+        // NanoHTTPD lower cases the names of request headers
+        var headers = session.headers ?: emptyMap<String, String>()
+
+        if (HttpHeaders.isNotModified(headers, etag, lastModified)) {
+            return newFixedLengthResponse(Response.Status.NOT_MODIFIED, "text/plain", "").apply {
+                addHeader("ETag", etag)
+                addHeader("Last-Modified", lastModifiedDate)
+            }
+        }
+
+        var ifRange = headers["if-range"]
+        var range = headers["range"]
+            ?.takeIf { ifRange == null || ifRange == etag || ifRange == lastModifiedDate }
+            ?.let { HttpHeaders.parseRange(it, length) }
+        if (range != null && range.isEmpty()) {
+            return newFixedLengthResponse(Response.Status.RANGE_NOT_SATISFIABLE, "text/plain", "").apply {
+                addHeader("Content-Range", "bytes */$length")
+            }
+        }
+
+        var start = range?.first ?: 0L
+        var count = if (range != null) range.last - range.first + 1 else length
+        var status = if (range != null) Response.Status.PARTIAL_CONTENT else Response.Status.OK
+        var mimeType = getMimeType(content.name)
+        var response = if (head) {
+            // Nothing is read from an empty body, the length is the one of a GET
+            newFixedLengthResponse(status, mimeType, "").apply {
+                addHeader("Content-Length", "$count")
+            }
+        } else {
+            metrics.addBytes(route, count)
+            newFixedLengthResponse(status, mimeType, content.open(start, count), count)
+        }
+        return response.apply {
+            addHeader("Accept-Ranges", "bytes")
+            addHeader("ETag", etag)
+            addHeader("Last-Modified", lastModifiedDate)
+            if (range != null) {
+                addHeader("Content-Range", "bytes ${range.first}-${range.last}/$length")
+            }
+        }
+    }
+
+    private fun getMimeType(name: String): String {
+        var extension = name.substringAfterLast('.', "").lowercase()
+        return MimeTypeMap.getSingleton().getMimeTypeFromExtension(extension)
+            ?: MIME_TYPES[extension]
+            ?: "application/octet-stream"
+    }
+
+    private fun getRoute(uri: Uri) = when {
+        uri.pathSegments.size == 1 -> ServerMetrics.ROUTE_RESOURCE
+        uri.pathSegments.size > 1 -> ServerMetrics.ROUTE_BUNDLE
+        else -> ServerMetrics.ROUTE_OTHER
+    }
+
+    private fun fetchContent(uri: Uri): ServedContent? =
+        if (uri.pathSegments.size == 1) getResourceFile(uri)?.let { fileContent(it) } else getBundleContent(uri)
+
+    private fun fileContent(file: File): ServedContent? = file.takeIf { it.isFile }?.let {
+        var length = it.length()
+        var lastModified = it.lastModified()
+        ServedContent(
+            it.name,
+            length,
+            lastModified,
+            "\"${java.lang.Long.toHexString(length)}-${java.lang.Long.toHexString(lastModified)}\""
+        ) { start, count -> MappedFileInputStream(it, start, count) }
+    }
+
+    /**
+     * An entry of the zip bundle mounted at the path, or else the extracted file
+     */
+    private fun getBundleContent(uri: Uri): ServedContent? {
+        var bundlesFolder = File(context.getExternalFilesDir(Environment.DIRECTORY_DOWNLOADS), "bundles")
+        BundleMounts.resolve(bundlesFolder, uri.path ?: "")?.let { (bundle, name) ->
+            var entry = bundle.getEntry(name)?.takeIf { !it.isDirectory } ?: return null
+            return ServedContent(
+                name.substringAfterLast('/'),
+                entry.size,
+                bundle.lastModified,
+                // The crc changes with the content of the entry
+                "\"${java.lang.Long.toHexString(entry.crc)}-${java.lang.Long.toHexString(entry.size)}\""
+            ) { start, count -> bundle.open(entry, start, count) }
+        }
+        return fileContent(getBundleFile(uri))
+    }
+
     private fun getResourceFile(uri: Uri): File? = uri.lastPathSegment?.let {
-        Log.i("ResouceLoaderManager","$it")
-        helper.queryLocationByResourceId(it)?.toUri()?.toFile()
-    } ?: null
+        if (debug) {
+            Log.i("ResouceLoaderManager","$it")
+        }
+        if (ResourceIndex.isLoaded) {
+            ResourceIndex.get(it).also { file ->
+                if (file != null) metrics.indexHit() else metrics.indexMiss()
+            }
+        } else {
+            metrics.databaseLookup()
+            helper.queryLocationByResourceId(it)?.let { location -> File(location) }
+        }
+    }
 
-    private fun getBundleFile(uri: Uri): File? {
-        Log.i("$TAG", "run on here:${uri}")
+    private fun getBundleFile(uri: Uri): File {
+        if (debug) {
+            Log.i("$TAG", "run on here:${uri}")
+        }
         var rootFolder =
             File(context.getExternalFilesDir(Environment.DIRECTORY_DOWNLOADS), "bundles")
         return File(rootFolder, uri.encodedPath)
@@ -124,17 +321,9 @@ class WebServer(var rootFolder: File, port: Int, private val context: Context) :
 
 class GeneralQueryHelper(var context: Context) {
     val queryDao: FileInfoDao by lazy { FileInfoDao(context) }
-    fun queryFileEntityById(id: String) = queryDao.queryByResourceId(id)?.last()
-
-    fun queryLocationByResourceId(id: String) = queryFileEntityById(id)?.let { fileEntity ->
-        DownloadManager.Query().apply { setFilterById(fileEntity.downloadmanager_id) }
-            ?.let { query ->
-                var downloadManager =
-                    context.getSystemService(Context.DOWNLOAD_SERVICE) as DownloadManager
-                downloadManager.query(query)
-                    ?.takeIf { it.moveToNext() }
-                    ?.takeIf { it.getInt(it.getColumnIndexOrThrow(DownloadManager.COLUMN_STATUS)) == DownloadManager.STATUS_SUCCESSFUL }
-                    ?.let { it.getString(it.getColumnIndex(DownloadManager.COLUMN_LOCAL_URI)) }
-            }
-    }
+    fun queryFileEntityById(id: String) = queryDao.queryByResourceId(id)
+
+    fun queryLocationByResourceId(id: String) = queryFileEntityById(id)
+        ?.takeIf { it.status == DownloadEngine.STATUS_SUCCESSFUL }
+        ?.location
 }
@@ -8,13 +8,15 @@ import java.math.BigInteger
 import java.security.MessageDigest
 
 
+/**
+ * The digest as the lower case hex string of 32 characters compared to the md5 of a file
+ */
+internal fun MessageDigest.toHex(): String = BigInteger(1, digest()).toString(16).padStart(32, '0')
+
 internal fun ByteArray.toMd5(): String {
     var md = MessageDigest.getInstance("MD5")
     md.update(this)
-    var result = BigInteger(1, md.digest()).toString(16)
-    if (result.length < 32)
-        result = "0$result"
-    return result
+    return md.toHex()
 }
 
 internal fun String.toMd5() = this.encodeToByteArray().toMd5()
@@ -32,9 +34,7 @@ fun File.toBigMd5(): String {
         flag = inputStream.read(buffer)
     }
     inputStream.close()
-    var result = BigInteger(1, md.digest()).toString(16)
-    if (result.length < 32)
-        result = "0$result"
+    var result = md.toHex()
     Log.i("fileMd5", "fileMd5:${result}")
     return result
 }
@@ -0,0 +1,60 @@
+package tv.jbcz.resourceloader
+
+import java.text.ParseException
+import java.text.SimpleDateFormat
+import java.util.Date
+import java.util.Locale
+import java.util.TimeZone
+
+/**
+ * The conditional and range request headers the web server handles.
+ * Header names are the lower case ones of NanoHTTPD.
+ */
+internal object HttpHeaders {
+
+    /**
+     * Whether If-None-Match, or If-Modified-Since without it, matches the content
+     */
+    fun isNotModified(headers: Map<String, String>, etag: String, lastModified: Long): Boolean {
+        headers["if-none-match"]?.let { ifNoneMatch ->
+            return ifNoneMatch.split(',').map { it.trim().removePrefix("W/") }.any { it == "*" || it == etag }
+        }
+        var ifModifiedSince = headers["if-modified-since"]?.let { parseDate(it) } ?: return false
+        return lastModified / 1000 <= ifModifiedSince / 1000
+    }
+
+    /**
+     * The first range of a "bytes=" Range header. Returns null to ignore a header that can't
+     * be parsed and an empty range when it can't be satisfied.
+     */
+    fun parseRange(header: String, length: Long): LongRange? {
+        if (!header.startsWith("bytes=")) return null
+        var spec = header.substring("bytes=".length).substringBefore(',').trim()
+        var separator = spec.indexOf('-')
+        if (separator == -1) return null
+        var first = spec.substring(0, separator).trim()
+        var last = spec.substring(separator + 1).trim()
+        if (first.isEmpty()) {
+            var suffix = last.toLongOrNull() ?: return null
+            if (suffix <= 0 || length == 0L) return LongRange.EMPTY
+            return maxOf(0L, length - suffix)..(length - 1)
+        }
+        var start = first.toLongOrNull() ?: return null
+        var end = if (last.isEmpty()) null else last.toLongOrNull() ?: return null
+        if (end != null && end < start) return null
+        if (start >= length) return LongRange.EMPTY
+        return start..minOf(end ?: length - 1, length - 1)
+    }
+
+    private fun dateFormat() = SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss 'GMT'", Locale.US).apply {
+        timeZone = TimeZone.getTimeZone("GMT")
+    }
+
+    fun formatDate(time: Long): String = dateFormat().format(Date(time))
+
+    fun parseDate(date: String): Long? = try {
+        dateFormat().parse(date)?.time
+    } catch (e: ParseException) {
+        null
+    }
+}
@@ -1,23 +1,21 @@
 package tv.jbcz.resourceloader
 
-import android.app.DownloadManager
 import android.content.Context
 import android.os.Environment
 import android.text.TextUtils
-import android.util.Log
-import androidx.core.net.toFile
 import androidx.core.net.toUri
 import tv.jbcz.resourceloader.database.FileEntity
 import tv.jbcz.resourceloader.database.FileInfoDao
 import java.io.File
+import java.util.concurrent.ExecutorService
+import java.util.concurrent.Executors
 
 class FileDownloadRepository(context: Context) {
     companion object{
         @JvmStatic
-        private val TAG:String = "DownloadManager"
-    }
-    val downloadManager: DownloadManager by lazy {
-        context.getSystemService(Context.DOWNLOAD_SERVICE) as DownloadManager
+        private val TAG:String = "FileDownloadRepository"
+
+        private val HASH_THREADS = minOf(4, maxOf(1, Runtime.getRuntime().availableProcessors()))
     }
     val fileDao: FileInfoDao by lazy {
         FileInfoDao(context)
@@ -28,97 +26,196 @@ class FileDownloadRepository(context: Context) {
     val rootDirectory : File? by lazy {
         context.getExternalFilesDir(Environment.DIRECTORY_DOWNLOADS)
     }
-    fun deleteFileById(resourceId: String) {
-        fileDao.queryByResourceId(resourceId)?.last()?.run {
-            queryFromDownloadManager(this.downloadmanager_id)?.second?.delete()
+    val downloadEngine: DownloadEngine by lazy {
+        DownloadEngine().apply {
+            listener = object : DownloadEngine.Listener {
+                override fun onComplete(task: DownloadEngine.Task) {
+                    updateDatabase(task).forEach { onDownloadComplete?.invoke(it, task.file) }
+                }
+
+                override fun onError(task: DownloadEngine.Task) {
+                    updateDatabase(task)
+                }
+            }
         }
     }
 
+    // Checks the md5 of files in a batch, reading files is the slow part of a query
+    private val hashPool: ExecutorService by lazy {
+        Executors.newFixedThreadPool(HASH_THREADS)
+    }
+
     /**
-     * return file if download successful
+     * Called on a download thread when a file has been downloaded
+     */
+    var onDownloadComplete: ((resourceId: String, file: File) -> Unit)? = null
+
+    // Files are shared by the resources of the same md5: the downloads running by md5, and
+    // the resources waiting for the download of another resource
+    private val contentLock = Any()
+    private val downloadsByHash = HashMap<String, String>()
+    private val sharedDownloads = HashMap<String, String>()
+
+    private fun activeTask(resourceId: String): DownloadEngine.Task? = (downloadEngine.get(resourceId)
+        ?: synchronized(contentLock) { sharedDownloads[resourceId] }?.let { downloadEngine.get(it) })
+        ?.takeIf { it.isActive() }
+
+    private fun queryEntity(resourceId: String) =
+        fileDao.queryByResourceId(resourceId)
+            ?.takeIf { it.status != FileEntity.STATUS_NOT_CREATED }
+
+    /**
+     * Delete the file of a resource, the file is kept while other resources share it
      */
-    fun queryFromDownloadManager(id: Long) =
-        DownloadManager.Query().apply { setFilterById(id) }?.let { query ->
-            downloadManager.query(query)
-                ?.takeIf { it.moveToNext() }
-                ?.takeIf { it.getInt(it.getColumnIndexOrThrow(DownloadManager.COLUMN_STATUS)) == DownloadManager.STATUS_SUCCESSFUL }
-                ?.let {
-                    var hash = it.getString(it.getColumnIndex(DownloadManager.COLUMN_DESCRIPTION))
-                    var sourceUri = it.getString(it.getColumnIndex(DownloadManager.COLUMN_URI))
-                    var localUri = it.getString(it.getColumnIndex(DownloadManager.COLUMN_LOCAL_URI))
-                    var reason = it.getString(it.getColumnIndex(DownloadManager.COLUMN_REASON))
-                    Log.i(TAG, "${sourceUri} ${localUri}")
-                    fileDao.queryByDownloadId(id)?.resourceId to localUri.toUri().toFile()
-                        ?.takeIf { f -> f.exists() }
+    fun deleteFileById(resourceId: String) {
+        synchronized(contentLock) {
+            sharedDownloads.remove(resourceId)
+            // The download goes on for the resources waiting for it
+            if (!sharedDownloads.containsValue(resourceId)) {
+                downloadEngine.cancel(resourceId)
+                downloadsByHash.values.remove(resourceId)
+            }
+            try {
+                var entity = queryEntity(resourceId) ?: return
+                var location = entity.location ?: return
+                if (fileDao.countByLocation(location, resourceId) == 0L) {
+                    File(location).run {
+                        unmountZip(this)
+                        delete()
+                        File("$path.part").delete()
+                        File("$path.part.state").delete()
+                    }
                 }
+                // Without a location the resource is reported as missing, and no longer counts
+                entity.location = null
+                fileDao.update(entity)
+            } finally {
+                // Once the row is updated, so an index loading meanwhile doesn't read it back
+                ResourceIndex.remove(resourceId)
+            }
         }
+    }
 
-    private fun queryDownloadManagerId(resourceId: String) =
-        fileDao.queryByResourceId(resourceId)?.last()
-            ?.let { DownloadManager.Query().apply { setFilterById(it.downloadmanager_id) } }
-            ?.let { downloadManager.query(it) }?.takeIf { c -> c != null && c.moveToNext() }
+    /**
+     * return file if download successful
+     */
+    fun queryDownloadedFile(resourceId: String): File? =
+        queryEntity(resourceId)
+            ?.takeIf { it.status == DownloadEngine.STATUS_SUCCESSFUL }
+            ?.location?.let { File(it) }
+            ?.takeIf { it.exists() }
 
     fun queryFileState(
         resourceId: String,
         downloadUri: String,
         mHash: String? = null,
         location: String? = null
+    ): DataFile = fileState(resourceId, downloadUri, mHash, queryEntity(resourceId))
+
+    /**
+     * Resolve the state of many files, fetching them when fetch is true.
+     * The rows of all files are read with one query, and the files whose md5 must be checked
+     * are checked in parallel. onResult is called with the index of each request as soon as
+     * its state is known, on the calling thread or on a hash thread.
+     */
+    fun queryFileStates(
+        requests: List<FileRequest>,
+        fetch: Boolean,
+        onResult: (index: Int, dataFile: DataFile) -> Unit
+    ) {
+        // A resource listed several times is resolved once, from its first request,
+        // and its result is given for each of its indexes
+        var indexes = LinkedHashMap<String, MutableList<Int>>()
+        requests.forEachIndexed { index, request ->
+            indexes.getOrPut(request.resourceId) { ArrayList(1) }.add(index)
+        }
+        var entities = fileDao.queryByResourceIds(indexes.keys)
+        indexes.values.forEach { sameResource ->
+            var request = requests[sameResource[0]]
+            var entity = entities[request.resourceId]?.takeIf { it.status != FileEntity.STATUS_NOT_CREATED }
+            var deliver = { dataFile: DataFile -> sameResource.forEach { onResult(it, dataFile) } }
+            if (!TextUtils.isEmpty(request.md5Hash) && entity?.status == DownloadEngine.STATUS_SUCCESSFUL) {
+                hashPool.execute { deliver(resolve(request, entity, fetch)) }
+            } else {
+                deliver(resolve(request, entity, fetch))
+            }
+        }
+    }
+
+    private fun resolve(request: FileRequest, entity: FileEntity?, fetch: Boolean): DataFile = try {
+        var state = fileState(request.resourceId, request.downloadUri, request.md5Hash, entity)
+        if (fetch) {
+            fetchState(request.resourceId, request.downloadUri, request.md5Hash, request.location, request.priority, state)
+        } else {
+            state
+        }
+    } catch (e: Exception) {
+        DataFile(request.resourceId, statusCode = -10, reason = e.localizedMessage)
+    }
+
+    private fun fileState(
+        resourceId: String,
+        downloadUri: String,
+        mHash: String?,
+        entity: FileEntity?
     ): DataFile {
-        var cursor = queryDownloadManagerId(resourceId)
         var dataFile = DataFile(resourceId)
+        var task = activeTask(resourceId)
 
-        dataFile.statusCode = if (cursor != null) 1 else -6
-        dataFile.reason = if (cursor !=null) "" else "Task not ceated yet"
-
-        if (cursor != null) {
-            var sourceUri = cursor.getString(cursor.getColumnIndex(DownloadManager.COLUMN_URI))
-            var localUri = cursor.getString(cursor.getColumnIndex(DownloadManager.COLUMN_LOCAL_URI))
-            var reason = cursor.getString(cursor.getColumnIndex(DownloadManager.COLUMN_REASON))
-            var status = cursor.getInt(cursor.getColumnIndexOrThrow(DownloadManager.COLUMN_STATUS))
-            var total = cursor.getLong(cursor.getColumnIndexOrThrow(DownloadManager.COLUMN_TOTAL_SIZE_BYTES))
-            var current = cursor.getLong(cursor.getColumnIndexOrThrow(DownloadManager.COLUMN_BYTES_DOWNLOADED_SO_FAR))
-            dataFile.total = total
-            dataFile.current = current
-            dataFile.reason = reason
-            dataFile.statusCode = when (status) {
-                DownloadManager.STATUS_PENDING -> 2
-                DownloadManager.STATUS_RUNNING -> 2
-                DownloadManager.STATUS_PAUSED -> 2
-                DownloadManager.STATUS_SUCCESSFUL -> {
-                    var file = localUri.toUri().toFile()
-                    if (!file.exists()) {
-                        dataFile.reason="File is not exists"
-                        -4
+        if (task != null) {
+            dataFile.statusCode = 2
+            dataFile.reason = ""
+            dataFile.total = task.total
+            dataFile.current = task.current
+            return dataFile
+        }
+        if (entity == null) {
+            dataFile.statusCode = -6
+            dataFile.reason = "Task not ceated yet"
+            return dataFile
+        }
+
+        dataFile.total = entity.total
+        dataFile.reason = entity.reason
+        dataFile.statusCode = when (entity.status) {
+            DownloadEngine.STATUS_RUNNING -> {
+                // Interrupted before it completed, fetching the file again resumes it
+                dataFile.reason = "Paused"
+                dataFile.current = entity.location?.let { File("$it.part").length() } ?: 0L
+                2
+            }
+            DownloadEngine.STATUS_SUCCESSFUL -> {
+                var file = File(entity.location ?: "")
+                dataFile.current = entity.total
+                if (!file.exists()) {
+                    dataFile.reason="File is not exists"
+                    -4
+                } else {
+                    var code = if (!TextUtils.isEmpty(mHash)) {
+                        var fileHash = verifiedHash(entity, file)
+                        if (mHash == fileHash) {
+                            0
+                        } else {
+                            dataFile.reason =
+                                "md5 hash error accept:${mHash},hash of file:${fileHash}"
+                            -2
+                        }
                     } else {
-                        var code = if (!TextUtils.isEmpty(mHash)) {
-                            var fileHash = file.toBigMd5()
-                            if (mHash == fileHash) {
-                                0
-                            } else {
-                                dataFile.reason =
-                                    "md5 hash error accept:${mHash},hash of file:${fileHash}"
-                                -2
-                            }
+                        if (downloadUri == entity.uri) {
+                            0
                         } else {
-                            if (downloadUri == sourceUri) {
-                                0
-                            } else {
-                                dataFile.reason =
-                                    "source uri changed:accept:${downloadUri},source:${sourceUri}"
-                                -3
-                            }
+                            dataFile.reason =
+                                "source uri changed:accept:${downloadUri},source:${entity.uri}"
+                            -3
                         }
-                        if (code == 0)
-                            dataFile.file = file
-                        code
                     }
+                    if (code == 0)
+                        dataFile.file = file
+                    code
                 }
-                DownloadManager.STATUS_FAILED -> {
-                    dataFile.reason = reason
-                    -1
-                }
-                else -> -10
             }
+            DownloadEngine.STATUS_FAILED -> -1
+            else -> -10
         }
         return dataFile
     }
@@ -127,12 +224,21 @@ class FileDownloadRepository(context: Context) {
         resourceId: String,
         downloadUri: String,
         mHash: String? = null,
-        location: String? = null
-    ): DataFile = queryFileState(resourceId, downloadUri, mHash, location)
+        location: String? = null,
+        priority: Int = 0
+    ): DataFile = fetchState(resourceId, downloadUri, mHash, location, priority, queryFileState(resourceId, downloadUri, mHash, location))
+
+    private fun fetchState(
+        resourceId: String,
+        downloadUri: String,
+        mHash: String?,
+        location: String?,
+        priority: Int,
+        state: DataFile
+    ): DataFile = state
         .also {
             if (it.statusCode == -6) {
-                var id = insertDownloadManager(downloadUri, mHash, location)
-                insertDatabase(resourceId, downloadUri, id, mHash, location)
+                download(resourceId, downloadUri, mHash, location, priority)
                 var result = queryFileState(resourceId,downloadUri,mHash,location)
                 it.file=result.file
                 it.statusCode = result.statusCode
@@ -141,25 +247,195 @@ class FileDownloadRepository(context: Context) {
                 it.total = result.total
                 it.resourceId = result.resourceId
             } else if (it.statusCode > 0) {
-
+                if (activeTask(resourceId) == null) {
+                    download(resourceId, downloadUri, mHash, location, priority)
+                }
             } else if (it.statusCode < 0) {
                 it.file?.takeIf { it.exists() }?.run {
                     delete()
                 }
-                var id = insertDownloadManager(downloadUri, mHash, location)
-                insertDatabase(resourceId, downloadUri, id, mHash, location)
+                download(resourceId, downloadUri, mHash, location, priority)
             }
         }
 
-    fun insertDatabase(
+    /**
+     * Share the file or the download of the same md5, or else download the file
+     */
+    private fun download(
+        resourceId: String,
+        downloadUri: String,
+        hash: String?,
+        location: String?,
+        priority: Int
+    ) {
+        // Found before taking the lock, the file may have to be hashed
+        var sameContent = hash?.takeIf { !TextUtils.isEmpty(it) }?.let { findContent(resourceId, it) }
+        synchronized(contentLock) {
+            if (TextUtils.isEmpty(hash) || !shareContent(resourceId, downloadUri, hash!!, sameContent)) {
+                startDownload(resourceId, downloadUri, hash, location, priority)
+            }
+        }
+    }
+
+    /**
+     * The downloaded file of another resource whose md5 is hash
+     */
+    private fun findContent(resourceId: String, hash: String): Pair<File, FileEntity>? =
+        fileDao.queryByFileHash(hash)
+            ?.takeIf { it.resourceId != resourceId }
+            ?.let { entity ->
+                File(entity.location!!).takeIf { it.isFile && verifiedHash(entity, it) == hash }?.to(entity)
+            }
+
+    private fun shareContent(
+        resourceId: String,
+        downloadUri: String,
+        hash: String,
+        sameContent: Pair<File, FileEntity>?
+    ): Boolean {
+        sharedDownloads.remove(resourceId)
+        sameContent
+            // Hashed without the lock: still there, unchanged since
+            ?.takeIf { (file, entity) ->
+                file.isFile && file.length() == entity.fileSize && file.lastModified() == entity.fileMtime
+            }
+            ?.first
+            ?.let { file ->
+                downloadEngine.cancel(resourceId)
+                releaseFile(resourceId, file)
+                FileEntity(
+                    downloadmanager_id = 0,
+                    hash = hash,
+                    resourceId = resourceId,
+                    uri = downloadUri,
+                    location = file.path,
+                    status = DownloadEngine.STATUS_SUCCESSFUL,
+                    total = file.length(),
+                    fileHash = hash,
+                    fileSize = file.length(),
+                    fileMtime = file.lastModified()
+                ).run {
+                    fileDao.upsert(this)
+                }
+                ResourceIndex.put(resourceId, file)
+                return true
+            }
+
+        var owner = downloadsByHash[hash]?.takeIf { it != resourceId } ?: return false
+        var task = downloadEngine.get(owner)?.takeIf { it.isActive() } ?: return false
+        downloadEngine.cancel(resourceId)
+        ResourceIndex.remove(resourceId)
+        releaseFile(resourceId, task.file)
+        insertDatabase(resourceId, downloadUri, task.file, hash)
+        sharedDownloads[resourceId] = owner
+        return true
+    }
+
+    /**
+     * Delete the previous file of a resource moving to a shared file, unless others use it
+     */
+    private fun releaseFile(resourceId: String, shared: File) {
+        fileDao.queryByResourceId(resourceId)?.location
+            ?.takeIf { it != shared.path && fileDao.countByLocation(it, resourceId) == 0L }
+            ?.let {
+                unmountZip(File(it))
+                File(it).delete()
+            }
+    }
+
+    /**
+     * Unmount the bundles read from a downloaded zip, or from the zips under a directory,
+     * before they are deleted
+     */
+    private fun unmountZip(file: File) {
+        BundleMounts.unmountZip(File(rootDirectory, "bundles"), file)
+    }
+
+    private fun startDownload(
         resourceId: String,
         downloadUri: String,
-        downloadId: Long,
         hash: String? = null,
-        location: String? = null
+        location: String? = null,
+        priority: Int = 0
+    ) {
+        var file = unusedLocationFile(resourceId, getLocationFile(downloadUri, location))
+        ResourceIndex.remove(resourceId)
+        if (!TextUtils.isEmpty(hash)) {
+            downloadsByHash[hash!!] = resourceId
+        }
+        releaseFile(resourceId, file)
+        if (file.exists() && !file.isDirectory) {
+            unmountZip(file)
+            file.delete()
+        }
+        // Recorded first, so the row exists when the download completes
+        insertDatabase(resourceId, downloadUri, file, hash)
+        downloadEngine.enqueue(resourceId, downloadUri, file, priority)
+    }
+
+    fun insertDatabase(
+        resourceId: String,
+        downloadUri: String,
+        file: File,
+        hash: String? = null
     ) {
-        FileEntity(downloadmanager_id = downloadId, hash = hash, resourceId = resourceId).run {
-            fileDao.insert(this)
+        FileEntity(
+            downloadmanager_id = 0,
+            hash = hash,
+            resourceId = resourceId,
+            uri = downloadUri,
+            location = file.path,
+            status = DownloadEngine.STATUS_RUNNING
+        ).run {
+            fileDao.upsert(this)
+        }
+    }
+
+    /**
+     * Record the end of a download for its resource and the resources sharing it.
+     * return:the resources updated
+     */
+    private fun updateDatabase(task: DownloadEngine.Task): List<String> {
+        var resourceIds = synchronized(contentLock) {
+            downloadsByHash.values.remove(task.resourceId)
+            var shared = sharedDownloads.filterValues { it == task.resourceId }.keys.toList()
+            shared.forEach { sharedDownloads.remove(it) }
+            listOf(task.resourceId) + shared
+        }
+        return resourceIds.filter { resourceId ->
+            fileDao.queryByResourceId(resourceId)
+                ?.takeIf { it.location == task.file.path && (it.uri == task.uri || resourceId != task.resourceId) }
+                ?.run {
+                    status = task.status
+                    total = task.total
+                    reason = task.reason
+                    if (task.status == DownloadEngine.STATUS_SUCCESSFUL) {
+                        fileHash = task.md5
+                        fileSize = task.file.length()
+                        fileMtime = task.file.lastModified()
+                    }
+                    fileDao.update(this)
+                    if (task.status == DownloadEngine.STATUS_SUCCESSFUL) {
+                        ResourceIndex.put(resourceId, task.file)
+                    }
+                } != null
+        }
+    }
+
+    /**
+     * The md5 of a downloaded file, only read again when its size or mtime changed
+     */
+    private fun verifiedHash(entity: FileEntity, file: File): String {
+        var size = file.length()
+        var mtime = file.lastModified()
+        entity.fileHash?.takeIf { entity.fileSize == size && entity.fileMtime == mtime }?.let {
+            return it
+        }
+        return file.toBigMd5().also {
+            entity.fileHash = it
+            entity.fileSize = size
+            entity.fileMtime = mtime
+            fileDao.update(entity)
         }
     }
 
@@ -183,8 +459,13 @@ class FileDownloadRepository(context: Context) {
             rootDirectory?.let {
                 arrayOf(File(it.path,locationUri))
         }
+        // A bundle mounted there is deleted with the extracted ones
+        locationUri.trim('/').takeIf { it == "bundles" || it.startsWith("bundles/") }?.let {
+            BundleMounts.unmount(File(rootDirectory, "bundles"), it.removePrefix("bundles"))
+        }
         bundles?.filter { it.exists() }?.forEach{
             internalDeleteFile(it)
+            ResourceIndex.removeUnder(it)
         }
 
         var files =
@@ -192,48 +473,51 @@ class FileDownloadRepository(context: Context) {
         files.filter {
             it?.exists()?:false
         }?.forEach {
+            unmountZip(it)
             internalDeleteFile(it)
+            ResourceIndex.removeUnder(it)
         }
 
     }
 
-    private fun insertDownloadManager(
-        downloadUri: String,
-        hash: String? = null,
-        location: String? = null
-    ): Long {
-        var request = DownloadManager.Request(downloadUri.toUri())
+    /**
+     * The file to download a resource to: file, unless other resources use it, in which case
+     * a name like "name-1.ext" next to it that no other resource uses and no file takes
+     */
+    private fun unusedLocationFile(resourceId: String, file: File): File {
+        if (fileDao.countByLocation(file.path, resourceId) == 0L) return file
+        var own = fileDao.queryByResourceId(resourceId)?.location
+        var extension = file.extension.takeIf { it.isNotEmpty() }?.let { ".$it" } ?: ""
+        var number = 1
+        while (true) {
+            var candidate = File(file.parentFile, "${file.nameWithoutExtension}-$number$extension")
+            if (fileDao.countByLocation(candidate.path, resourceId) == 0L &&
+                (!candidate.exists() || candidate.path == own)
+            ) return candidate
+            number++
+        }
+    }
+
+    private fun getLocationFile(downloadUri: String, location: String? = null): File {
         var fileName = downloadUri.toUri().lastPathSegment
 
         var finalDirectory =
             if (!TextUtils.isEmpty(location)) File(directory, location) else File(directory,fileName)
 
         var locationFile = if(finalDirectory.isDirectory)File(finalDirectory, fileName)else finalDirectory
-
-        if (locationFile.exists())
-            locationFile.delete()
-        if(locationFile.isDirectory){
-            Log.i(TAG,"file is directory")
-            if(!locationFile.exists())
-                locationFile.mkdir()
-        }else{
-            Log.i(TAG,"file is not directory")
-            if(!locationFile.parentFile.exists())
-                locationFile.mkdir()
-        }
-
-        if (!TextUtils.isEmpty(hash)) {
-            request.setDescription(hash)
-        }
-        request
-            .setDestinationUri(locationFile.toUri())
-            .setTitle(fileName?.substring(0, fileName?.indexOf(".")))
-            .setAllowedNetworkTypes(DownloadManager.Request.NETWORK_WIFI)
-            .setNotificationVisibility(DownloadManager.Request.VISIBILITY_VISIBLE)
-        return downloadManager.enqueue(request)
+        locationFile.parentFile?.takeIf { !it.exists() }?.mkdirs()
+        return locationFile
     }
 }
 
+data class FileRequest(
+    val resourceId: String,
+    val downloadUri: String,
+    val md5Hash: String? = null,
+    val location: String? = null,
+    val priority: Int = 0
+)
+
 data class DataFile(
     var resourceId: String,
     var file: File? = null,
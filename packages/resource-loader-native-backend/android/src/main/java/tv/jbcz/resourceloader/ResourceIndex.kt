@@ -0,0 +1,103 @@
+package tv.jbcz.resourceloader
+
+import tv.jbcz.resourceloader.database.FileInfoDao
+import java.io.File
+import java.util.concurrent.ConcurrentHashMap
+
+/**
+ * The downloaded file of every resource, so the web server finds a resource without
+ * querying the database.
+ *
+ * Loaded once from file_info, then kept up to date by the repository as downloads
+ * complete and files are deleted. Until it is loaded, lookups miss and callers fall
+ * back to the database.
+ */
+object ResourceIndex {
+    private val files = ConcurrentHashMap<String, File>()
+
+    private val lock = Any()
+
+    // Guarded by lock, non null while loading: the resources put or removed and the paths
+    // removed since the load started, whose loaded entries are stale
+    private var changedWhileLoading: HashSet<String>? = null
+    private var removedWhileLoading: ArrayList<File>? = null
+
+    @Volatile
+    var isLoaded = false
+        private set
+
+    /**
+     * Read the rows of file_info, without holding up the updates made meanwhile.
+     * The rows are read into a separate map, merged once read, except for the
+     * resources changed during the load.
+     */
+    fun load(dao: FileInfoDao) {
+        synchronized(lock) {
+            if (isLoaded || changedWhileLoading != null) return
+            changedWhileLoading = HashSet()
+            removedWhileLoading = ArrayList()
+        }
+        var loaded = HashMap<String, File>()
+        try {
+            dao.queryAll()
+                ?.filter { it.status == DownloadEngine.STATUS_SUCCESSFUL && it.location != null }
+                ?.forEach { loaded[it.resourceId] = File(it.location!!) }
+        } catch (e: Exception) {
+            synchronized(lock) {
+                changedWhileLoading = null
+                removedWhileLoading = null
+            }
+            throw e
+        }
+        synchronized(lock) {
+            var changed = changedWhileLoading!!
+            var removed = removedWhileLoading!!
+            loaded.forEach { (resourceId, file) ->
+                if (resourceId !in changed && removed.none { isUnder(file, it) }) {
+                    files.putIfAbsent(resourceId, file)
+                }
+            }
+            changedWhileLoading = null
+            removedWhileLoading = null
+            isLoaded = true
+        }
+    }
+
+    fun get(resourceId: String): File? = files[resourceId]
+
+    fun put(resourceId: String, file: File) {
+        change(resourceId) { files[resourceId] = file }
+    }
+
+    fun remove(resourceId: String) {
+        change(resourceId) { files.remove(resourceId) }
+    }
+
+    /**
+     * Remove the resources stored in a deleted file or directory
+     */
+    fun removeUnder(path: File) {
+        if (isLoaded) {
+            files.entries.removeAll { isUnder(it.value, path) }
+            return
+        }
+        synchronized(lock) {
+            removedWhileLoading?.add(path)
+            files.entries.removeAll { isUnder(it.value, path) }
+        }
+    }
+
+    private inline fun change(resourceId: String, update: () -> Unit) {
+        if (isLoaded) {
+            update()
+            return
+        }
+        synchronized(lock) {
+            changedWhileLoading?.add(resourceId)
+            update()
+        }
+    }
+
+    private fun isUnder(file: File, path: File) =
+        file == path || file.path.startsWith(path.path + File.separator)
+}
@@ -8,24 +8,50 @@ import androidx.core.net.toUri
 import com.getcapacitor.JSArray
 import com.getcapacitor.JSObject
 import java.io.*
-import java.util.zip.ZipEntry
-import java.util.zip.ZipInputStream
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicReferenceArray
 
 
 class ResourceLoader(val context: Context) {
+    companion object {
+        // Extract the entries of a zip to bundles/
+        const val UNZIP_EXTRACT = "extract"
+
+        // Serve the entries out of the zip, nothing is written
+        const val UNZIP_MOUNT = "mount"
+    }
+
     val repository: FileDownloadRepository by lazy {
         FileDownloadRepository(context)
     }
     val generLocalHost = "http://localhost:34652"
+    private val zipExtractor: ZipExtractor by lazy {
+        ZipExtractor()
+    }
+
+    /**
+     * listener is called on a download thread with the result of each completed download
+     */
+    fun setOnCompleteListener(listener: ((JSObject) -> Unit)?) {
+        repository.onDownloadComplete = listener?.let {
+            { resourceId: String, file: File ->
+                var length = file.length()
+                it(parseJSObject(DataFile(resourceId, file, 0, "", length, length)))
+            }
+        }
+    }
 
     /**
-     * return:uri Nullable
+     * Load the index of downloaded files the web server reads
      */
-    fun queryByDownloadId(id: Long): Pair<String, String>? {
-        var pair = repository.queryFromDownloadManager(id)
-        var replace = repository.directory.toUri().encodedPath
-        var path = pair?.second?.toUri()?.encodedPath
-        return "${pair?.first}" to "$generLocalHost${path?.replace(replace!!, "")}"
+    fun loadIndex() {
+        ResourceIndex.load(repository.fileDao)
+    }
+
+    fun shutdown() {
+        repository.downloadEngine.shutdown()
+        zipExtractor.shutdown()
     }
 
     fun deleteFile(locationUri: String) {
@@ -44,18 +70,57 @@ class ResourceLoader(val context: Context) {
         resourceId: String,
         downloadUri: String,
         md5Hash: String? = null,
-        location: String? = null
+        location: String? = null,
+        priority: Int = 0
     ): JSObject? {
-        var dataFile = repository.fetchFileById(resourceId, downloadUri, md5Hash, location)
+        var dataFile = repository.fetchFileById(resourceId, downloadUri, md5Hash, location, priority)
         return parseJSObject(dataFile)
     }
 
+    /**
+     * Resolve a batch of files, waiting at most timeout ms for them.
+     * onResult is called with every result as soon as it is known, also after the timeout.
+     * return:the results known in time in the order of the requests, and the ids still pending
+     */
+    fun queryFiles(
+        requests: List<FileRequest>,
+        fetch: Boolean,
+        timeout: Long,
+        onResult: (JSObject) -> Unit
+    ): Pair<List<JSObject>, List<String>> {
+        var results = AtomicReferenceArray<JSObject>(requests.size)
+        var latch = CountDownLatch(requests.size)
+        repository.queryFileStates(requests, fetch) { index, dataFile ->
+            var result = parseJSObject(dataFile)
+            results.set(index, result)
+            latch.countDown()
+            onResult(result)
+        }
+        latch.await(timeout, TimeUnit.MILLISECONDS)
+
+        var ready = ArrayList<JSObject>()
+        var pending = ArrayList<String>()
+        for (index in requests.indices) {
+            var result = results.get(index)
+            if (result != null) ready.add(result) else pending.add(requests[index].resourceId)
+        }
+        return ready to pending
+    }
+
     fun deleteFileById(resourceId: String) {
         repository.deleteFileById(resourceId)
     }
 
+    /**
+     * onProgress is called on the extracting threads with the entries and bytes written
+     */
     @Throws(Exception::class)
-    fun unzip(path: String, destine: String?): JSObject? {
+    fun unzip(
+        path: String,
+        destine: String?,
+        mode: String = UNZIP_EXTRACT,
+        onProgress: ((JSObject) -> Unit)? = null
+    ): JSObject? {
         var localPath = path.toUri().encodedPath
         var file = File(
             File(context.getExternalFilesDir(Environment.DIRECTORY_DOWNLOADS), "external"),
@@ -63,11 +128,26 @@ class ResourceLoader(val context: Context) {
         )
         var bundleFolder =
             File(context.getExternalFilesDir(Environment.DIRECTORY_DOWNLOADS), "bundles")
-        var destineFolder =
-            if (!TextUtils.isEmpty(destine)) File(bundleFolder, destine) else bundleFolder
-        if (!destineFolder.exists())
-            destineFolder.mkdirs()
-        var location = internalUnzip(destineFolder, file)
+        // A bundle is extracted or mounted in place of a directory of bundles/, not bundles/ itself
+        if (TextUtils.isEmpty(destine?.trim('/'))) throw IllegalArgumentException("location is null")
+        if (mode == UNZIP_MOUNT) {
+            // Reads the central directory, a file that isn't a zip is rejected here
+            ZipBundle.open(file)
+            BundleMounts.mount(bundleFolder, destine!!, file)
+        } else {
+            zipExtractor.extract(file, File(bundleFolder, destine)) { progress ->
+                onProgress?.invoke(JSObject().apply {
+                    put("path", path)
+                    put("location", destine)
+                    put("entries", progress.entries)
+                    put("totalEntries", progress.totalEntries)
+                    put("bytes", progress.bytes)
+                    put("totalBytes", progress.totalBytes)
+                })
+            }
+            // The extracted files replace a bundle mounted there
+            BundleMounts.unmount(bundleFolder, destine!!)
+        }
         var localm = if (destine?.startsWith("/") == true) destine else "/$destine"
         var result = JSObject().apply {
             put("result", "$generLocalHost$localm")
@@ -83,7 +163,18 @@ class ResourceLoader(val context: Context) {
             if (path.startsWith("/")) path.removeRange(0, 1) else path
         )
         var result = JSObject()
-        if (!destineFolder.exists() || !destineFolder.isDirectory) {
+        var mounted = BundleMounts.resolve(rootFolder, path)
+        if (mounted != null) {
+            var (bundle, directory) = mounted
+            result.put("files", JSArray().apply {
+                bundle.list(directory).forEach {
+                    put(JSObject().apply {
+                        put("fileName", it.trimEnd('/'))
+                        put("isDirectory", it.endsWith("/"))
+                    })
+                }
+            })
+        } else if (!destineFolder.exists() || !destineFolder.isDirectory) {
             result.put("files", null)
         } else {
             ls(destineFolder)?.map {
@@ -132,50 +223,23 @@ class ResourceLoader(val context: Context) {
         result
     }
 
-    @Throws(Exception::class)
-    private fun internalUnzip(destine: File, filePath: File): String {
-        var localDestine = destine
-        var inputStream: InputStream?
-        inputStream = FileInputStream(filePath)
-        var zipInputStream = ZipInputStream(BufferedInputStream(inputStream))
-        var zipEntry: ZipEntry? = null
-        var buffer = ByteArray(1024)
-        var count = -1
-        zipEntry = zipInputStream.nextEntry
-        while (zipEntry != null) {
-            var fileName = zipEntry.name
-            var file = File(localDestine, fileName)
-            var desName = "${localDestine}/$fileName"
-            if (zipEntry.isDirectory) {
-                Log.i("ResouceLoaderManager", "zipName 1:${desName}")
-                File(desName).mkdirs()
-            } else {
-                //extract zip
-                Log.i("ResouceLoaderManager", "zipName 2:${file.toUri()}")
-                if (!file.exists())
-                    file.createNewFile()
-                Log.i("ResouceLoaderManager", "zipName 3:${file.toUri()}")
-                var fileOutputStream = FileOutputStream(file)
-                count = zipInputStream.read(buffer)
-                while (count > -1) {
-                    fileOutputStream.write(buffer, 0, count)
-                    count = zipInputStream.read(buffer)
-                }
-                fileOutputStream.close()
-            }
-            zipInputStream.closeEntry()
-            zipEntry = zipInputStream.nextEntry
-        }
-        zipInputStream.close()
-        inputStream.close()
-        return destine.toUri()?.encodedPath ?: ""
-    }
+    // The mounts and the directories of extractions in progress
+    private fun isInternal(name: String) = name.startsWith(BundleMounts.MOUNTS_FILE) ||
+            name.startsWith(".") && (name.endsWith(".tmp") || name.endsWith(".old"))
 
     private fun ls(rootFolder: File): ArrayList<Pair<String, Boolean>>? {
         var des = ArrayList<Pair<String, Boolean>>()
-        rootFolder.listFiles().map {
+        rootFolder.listFiles().filter { !isInternal(it.name) }.map {
             it.name to it.isDirectory
         }.toCollection(des)
+        // Mounted bundles are listed as directories
+        var bundleFolder =
+            File(context.getExternalFilesDir(Environment.DIRECTORY_DOWNLOADS), "bundles")
+        rootFolder.relativeToOrNull(bundleFolder)?.let { directory ->
+            BundleMounts.children(bundleFolder, directory.path)
+                .filter { name -> des.none { it.first == name } }
+                .forEach { des.add(it to true) }
+        }
         return des
     }
 }
\ No newline at end of file
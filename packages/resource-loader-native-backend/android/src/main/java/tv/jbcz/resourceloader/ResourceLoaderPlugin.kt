@@ -1,6 +1,5 @@
 package tv.jbcz.resourceloader
 
-import android.app.DownloadManager
 import android.content.BroadcastReceiver
 import android.content.Context
 import android.content.Intent
@@ -14,6 +13,7 @@ import androidx.core.net.toUri
 import com.getcapacitor.*
 import com.getcapacitor.JSObject.fromJSONObject
 import com.getcapacitor.annotation.CapacitorPlugin
+import com.getcapacitor.annotation.EventPolicy
 import org.json.JSONArray
 import org.json.JSONObject
 import tv.jbcz.resourceloader.HttpServer
@@ -21,14 +21,35 @@ import tv.jbcz.resourceloader.SimpleHttpWebServer
 import java.io.File
 import java.util.*
 import java.util.concurrent.ExecutorService
-import java.util.concurrent.Executors
+import java.util.concurrent.LinkedBlockingQueue
+import java.util.concurrent.ThreadPoolExecutor
+import java.util.concurrent.TimeUnit
 import java.util.concurrent.atomic.AtomicBoolean
 
-@CapacitorPlugin(name = "ResourceLoader")
+@CapacitorPlugin(
+    name = "ResourceLoader",
+    eventPolicies = [
+        EventPolicy(event = "onComplete", mode = EventPolicy.Mode.QUEUE, maxBatchSize = 64),
+        EventPolicy(event = "onFileStatus", mode = EventPolicy.Mode.QUEUE, maxBatchSize = 64),
+        EventPolicy(event = "onUnzipProgress", mode = EventPolicy.Mode.LATEST, interval = 100),
+        EventPolicy(event = "onError", mode = EventPolicy.Mode.LATEST, interval = 1000)
+    ]
+)
 class ResourceLoaderPlugin : Plugin() {
+    companion object {
+        // How long a queryFile or fetchFile call waits before resolving with the files pending
+        private const val BATCH_TIMEOUT = 30000L
 
+        // Calls beyond these wait in the queue, instead of each getting a thread
+        private const val CALL_THREADS = 4
+    }
+
+    // Waits for batches of files, the work is done by the repository pools.
+    // Also runs unzip calls
     private val threadPool: ExecutorService by lazy {
-        Executors.newSingleThreadExecutor()
+        ThreadPoolExecutor(
+            CALL_THREADS, CALL_THREADS, 30L, TimeUnit.SECONDS, LinkedBlockingQueue()
+        ).apply { allowCoreThreadTimeOut(true) }
     }
     private val implementation: ResourceLoader by lazy {
         ResourceLoader(context)
@@ -39,24 +60,6 @@ class ResourceLoaderPlugin : Plugin() {
     val broadcastReceiver = object : BroadcastReceiver() {
         override fun onReceive(context: Context?, intent: Intent?) {
             when (intent?.action) {
-                DownloadManager.ACTION_DOWNLOAD_COMPLETE -> {
-                    if (hasListeners("onComplete")) {
-                        var id = intent.getLongExtra(DownloadManager.EXTRA_DOWNLOAD_ID, -1)
-                        var pairs = implementation.queryByDownloadId(id)
-                        if (pairs != null) {
-                            var result = JSObject()
-                            var file = JSObject()
-                            file.put("location_uri", pairs.second)
-                            file.put("id", pairs.first)
-                            var status=JSONObject()
-                            status.put("code",0)
-
-                            result.put("file", file)
-                            result.put("status",status)
-                            notifyListeners("onComplete", result, false)
-                        }
-                    }
-                }
                 Intent.ACTION_DEVICE_STORAGE_LOW -> {
                     if (hasListeners("onError")) {
                         var error = JSObject()
@@ -74,10 +77,18 @@ class ResourceLoaderPlugin : Plugin() {
 
     override fun load() {
         super.load()
+        implementation.setOnCompleteListener { result ->
+            if (hasListeners("onComplete")) {
+                notifyListeners("onComplete", result, false)
+            }
+        }
+        threadPool.execute {
+            implementation.loadIndex()
+        }
         context.registerReceiver(broadcastReceiver, IntentFilter().apply {
-            addAction(DownloadManager.ACTION_DOWNLOAD_COMPLETE)
             addAction(Intent.ACTION_DEVICE_STORAGE_LOW)
         })
+        httpdServer.debug = config.getBoolean("debug", false)
         httpdServer.start()
     }
 
@@ -119,42 +130,61 @@ class ResourceLoaderPlugin : Plugin() {
     }
     @PluginMethod
     fun queryFile(call:PluginCall){
+        resolveFiles(call, false)
+    }
+
+    /**
+     * Resolve the files of a call as one batch. Every result is also sent with the
+     * onFileStatus event as soon as it is known, files not resolved within the timeout
+     * are listed in "pending" and only delivered by the event.
+     */
+    private fun resolveFiles(call: PluginCall, fetch: Boolean) {
+        var params: List<JSONObject>?
         try {
-            var params = call.getArray("files").toList<JSONObject>()
-            val resultArray = JSArray()
-            var m = System.currentTimeMillis()
-            params?.filter { it.has("id") && it.has("uri") }
-                ?.map {
-                    var resourceId = it.getString("id")
-                    var uri = it.getString("uri")
-                    var md5 = if (it.has("md5")) it.getString("md5") else null
-                    var location = if (it.has("location")) it.getString("location") else null
-                   implementation.queryFile(
-                        resourceId = resourceId,
-                        downloadUri = uri,
-                        md5Hash = md5,
-                        location = location
-                    )
-                }?.forEach {
-                    resultArray.put(it)
-                }
-            var duration = System.currentTimeMillis() - m
-            if (!activity.isFinishing) {
-                val result = JSObject()
-                result.put("data", if (resultArray.length() != 0) resultArray else null)
-                skip(params)?.run {
-                    result.put("skip", this)
+            params = call.getArray("files").toList<JSONObject>()
+        } catch (e: Exception) {
+            call.reject(e.localizedMessage, e)
+            return
+        }
+        var requestId = call.getString("requestId", call.callbackId)
+        var requests = params?.filter { it.has("id") && it.has("uri") }
+            ?.map {
+                FileRequest(
+                    resourceId = it.getString("id"),
+                    downloadUri = it.getString("uri"),
+                    md5Hash = if (it.has("md5")) it.getString("md5") else null,
+                    location = if (it.has("location")) it.getString("location") else null,
+                    priority = it.optInt("priority", 0)
+                )
+            } ?: emptyList()
+
+        threadPool.execute {
+            try {
+                var (ready, pending) = implementation.queryFiles(requests, fetch, BATCH_TIMEOUT) { file ->
+                    if (hasListeners("onFileStatus")) {
+                        var event = JSObject()
+                        event.put("requestId", requestId)
+                        event.put("result", file)
+                        notifyListeners("onFileStatus", event, false)
+                    }
                 }
-                if (duration <= 30000) {
+                if (!activity.isFinishing) {
+                    val result = JSObject()
+                    result.put("data", if (ready.isNotEmpty()) JSArray(ready) else null)
+                    skip(params)?.run {
+                        result.put("skip", this)
+                    }
+                    if (pending.isNotEmpty()) {
+                        result.put("pending", JSArray(pending))
+                    }
                     call.resolve(result)
-                } else {
-                    call.reject("timeout", "-1")
                 }
+            } catch (e: Exception) {
+                call.reject(e.localizedMessage, e)
             }
-        } catch (e: Exception) {
-            call.reject(e.localizedMessage, e)
         }
     }
+
     private fun skip(params:List<JSONObject>?):JSArray?=params?.filter { !(it.has("id") && it.has("uri")) }?.map {
             var res = JSObject()
             if (it.has("id")) {
@@ -173,41 +203,7 @@ class ResourceLoaderPlugin : Plugin() {
         }
     @PluginMethod
     fun fetchFile(call: PluginCall) {
-        try {
-            var params = call.getArray("files").toList<JSONObject>()
-            val resultArray = JSArray()
-            var m = System.currentTimeMillis()
-            params?.filter { it.has("id") && it.has("uri") }
-                ?.map {
-                    var resourceId = it.getString("id")
-                    var uri = it.getString("uri")
-                    var md5 = if (it.has("md5")) it.getString("md5") else null
-                    var location = if (it.has("location")) it.getString("location") else null
-                    implementation.fetchFileById(
-                        resourceId = resourceId,
-                        downloadUri = uri,
-                        md5Hash = md5,
-                        location = location
-                    )
-                }?.forEach {
-                    resultArray.put(it)
-                }
-            var duration = System.currentTimeMillis() - m
-            if (!activity.isFinishing) {
-                val result = JSObject()
-                result.put("data", if (resultArray.length() != 0) resultArray else null)
-                skip(params)?.run {
-                    result.put("skip", this)
-                }
-                if (duration <= 30000) {
-                    call.resolve(result)
-                } else {
-                    call.reject("timeout", "-1")
-                }
-            }
-        } catch (e: Exception) {
-            call.reject(e.localizedMessage, e)
-        }
+        resolveFiles(call, true)
     }
 
     @PluginMethod
@@ -250,17 +246,34 @@ class ResourceLoaderPlugin : Plugin() {
     fun unZip(call: PluginCall){
         var path = call.data.getString("path")
         var location = call.data.getString("location","")
+        var mode = call.getString("mode", ResourceLoader.UNZIP_EXTRACT)!!
         if(TextUtils.isEmpty(location)){
             call.reject("location is null")
             return
         }
         Log.i("${ResourceLoaderPlugin::class.simpleName}","path:$path,location:$location")
-        try {
-            call.resolve(implementation.unzip(path!!,location))
-        } catch (e: Exception) {
-            call.reject(e.localizedMessage)
+        // Extraction takes a while, progress is sent with the onUnzipProgress event
+        threadPool.execute {
+            try {
+                call.resolve(implementation.unzip(path!!, location, mode) { progress ->
+                    if (hasListeners("onUnzipProgress")) {
+                        notifyListeners("onUnzipProgress", progress, false)
+                    }
+                })
+            } catch (e: Exception) {
+                call.reject(e.localizedMessage)
+            }
         }
     }
+    @PluginMethod
+    fun getServerMetrics(call: PluginCall) {
+        var result = httpdServer.metrics()
+        if (call.getBoolean("reset", false) == true) {
+            httpdServer.resetMetrics()
+        }
+        call.resolve(result)
+    }
+
     @PluginMethod
     fun ls(call: PluginCall){
         var path = call.data.getString("path")
@@ -274,6 +287,8 @@ class ResourceLoaderPlugin : Plugin() {
             registered.set(false)
             context.unregisterReceiver(broadcastReceiver)
         }
+        implementation.setOnCompleteListener(null)
+        implementation.shutdown()
         httpdServer.stop()
     }
 }
\ No newline at end of file
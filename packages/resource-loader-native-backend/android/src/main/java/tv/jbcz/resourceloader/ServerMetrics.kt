@@ -0,0 +1,107 @@
+package tv.jbcz.resourceloader
+
+import com.getcapacitor.JSArray
+import com.getcapacitor.JSObject
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.atomic.AtomicLong
+import java.util.concurrent.atomic.AtomicLongArray
+
+/**
+ * Request metrics of the local web server, per route.
+ *
+ * Latency is the time taken to resolve a request and build its response, the body is
+ * sent after. Bytes are the lengths of the bodies served.
+ */
+class ServerMetrics {
+    companion object {
+        const val ROUTE_RESOURCE = "resource"
+        const val ROUTE_BUNDLE = "bundle"
+        const val ROUTE_OTHER = "other"
+
+        // Upper bounds in ms, the last count is for slower requests
+        private val LATENCY_BUCKETS = longArrayOf(1, 2, 5, 10, 25, 50, 100, 250, 500, 1000)
+    }
+
+    private class Route {
+        val requests = AtomicLong()
+        val notModified = AtomicLong()
+        val partial = AtomicLong()
+        val notFound = AtomicLong()
+        val errors = AtomicLong()
+        val bytes = AtomicLong()
+        val totalLatency = AtomicLong()
+        val latency = AtomicLongArray(LATENCY_BUCKETS.size + 1)
+
+        fun toJSObject() = JSObject().apply {
+            var count = requests.get()
+            put("requests", count)
+            put("notModified", notModified.get())
+            put("partial", partial.get())
+            put("notFound", notFound.get())
+            put("errors", errors.get())
+            put("bytes", bytes.get())
+            put("averageLatency", if (count > 0) totalLatency.get().toDouble() / count else 0.0)
+            put("latency", JSObject().apply {
+                put("buckets", JSArray().apply { LATENCY_BUCKETS.forEach { put(it) } })
+                put("counts", JSArray().apply {
+                    for (index in 0 until latency.length()) put(latency.get(index))
+                })
+            })
+        }
+    }
+
+    private val routes = ConcurrentHashMap<String, Route>()
+
+    // Resource lookups answered by ResourceIndex, missing from it, or read from the database
+    private val indexHits = AtomicLong()
+    private val indexMisses = AtomicLong()
+    private val databaseLookups = AtomicLong()
+
+    private fun route(name: String): Route =
+        routes[name] ?: Route().let { routes.putIfAbsent(name, it) ?: it }
+
+    fun record(route: String, status: Int, elapsed: Long) {
+        var metrics = route(route)
+        metrics.requests.incrementAndGet()
+        when {
+            status == 304 -> metrics.notModified.incrementAndGet()
+            status == 206 -> metrics.partial.incrementAndGet()
+            status == 404 -> metrics.notFound.incrementAndGet()
+            status >= 400 -> metrics.errors.incrementAndGet()
+        }
+        metrics.totalLatency.addAndGet(elapsed)
+        var bucket = LATENCY_BUCKETS.indexOfFirst { elapsed <= it }
+        metrics.latency.incrementAndGet(if (bucket == -1) LATENCY_BUCKETS.size else bucket)
+    }
+
+    fun addBytes(route: String, bytes: Long) {
+        route(route).bytes.addAndGet(bytes)
+    }
+
+    fun indexHit() = indexHits.incrementAndGet()
+    fun indexMiss() = indexMisses.incrementAndGet()
+    fun databaseLookup() = databaseLookups.incrementAndGet()
+
+    fun reset() {
+        routes.clear()
+        indexHits.set(0)
+        indexMisses.set(0)
+        databaseLookups.set(0)
+    }
+
+    fun toJSObject() = JSObject().apply {
+        put("routes", JSObject().apply {
+            routes.forEach { (name, route) -> put(name, route.toJSObject()) }
+        })
+        var requests = routes.values.sumOf { it.requests.get() }
+        var notModified = routes.values.sumOf { it.notModified.get() }
+        var hits = indexHits.get()
+        var lookups = hits + indexMisses.get() + databaseLookups.get()
+        put("indexHits", hits)
+        put("indexMisses", indexMisses.get())
+        put("databaseLookups", databaseLookups.get())
+        put("indexHitRate", if (lookups > 0) hits.toDouble() / lookups else 0.0)
+        // Requests answered from the page's cache
+        put("notModifiedRate", if (requests > 0) notModified.toDouble() / requests else 0.0)
+    }
+}
@@ -0,0 +1,360 @@
+package tv.jbcz.resourceloader
+
+import java.io.ByteArrayInputStream
+import java.io.File
+import java.io.FileInputStream
+import java.io.FileOutputStream
+import java.io.IOException
+import java.io.InputStream
+import java.io.RandomAccessFile
+import java.io.SequenceInputStream
+import java.nio.ByteBuffer
+import java.nio.ByteOrder
+import java.nio.channels.FileChannel
+import java.util.Properties
+import java.util.concurrent.ConcurrentHashMap
+import java.util.zip.Inflater
+import java.util.zip.InflaterInputStream
+import java.util.zip.ZipException
+
+/**
+ * A zip file read through its central directory, so its entries are served without
+ * extracting them. Stored entries are read at their offset in the zip, deflated entries
+ * are inflated as they are read.
+ *
+ * Media (video, audio) should be stored: players read them by ranges, and a range of a
+ * deflated entry is only reached by inflating the entry from its start.
+ */
+class ZipBundle private constructor(val file: File, private val length: Long, val lastModified: Long) {
+    companion object {
+        private const val END_SIGNATURE = 0x06054b50
+        private const val CENTRAL_SIGNATURE = 0x02014b50
+        private const val LOCAL_SIGNATURE = 0x04034b50
+        private const val END_SIZE = 22
+        private const val CENTRAL_SIZE = 46
+        private const val LOCAL_SIZE = 30
+        private const val MAX_COMMENT = 0xffff
+        private const val ZIP64_MARKER = 0xffffffffL
+
+        const val METHOD_STORED = 0
+        const val METHOD_DEFLATED = 8
+
+        private val bundles = ConcurrentHashMap<String, ZipBundle>()
+
+        /**
+         * The bundle of a zip file, its index is read again when the file changed
+         */
+        @Throws(IOException::class)
+        fun open(file: File): ZipBundle {
+            var length = file.length()
+            var lastModified = file.lastModified()
+            bundles[file.path]?.let { cached ->
+                if (cached.length == length && cached.lastModified == lastModified) return cached
+                // The index of the previous zip is dropped even if the new one can't be read
+                bundles.remove(file.path, cached)
+            }
+            return ZipBundle(file, length, lastModified).also {
+                it.readIndex()
+                bundles[file.path] = it
+            }
+        }
+
+        /**
+         * Drop the index of a zip file no longer mounted
+         */
+        fun evict(file: File) {
+            bundles.remove(file.path)
+        }
+    }
+
+    class Entry internal constructor(
+        val name: String,
+        val method: Int,
+        val crc: Long,
+        val compressedSize: Long,
+        val size: Long,
+        internal val localHeaderOffset: Long
+    ) {
+        // Found from the local header the first time the entry is read
+        @Volatile
+        internal var dataOffset = -1L
+
+        val isDirectory: Boolean
+            get() = name.endsWith("/")
+    }
+
+    private val entries = HashMap<String, Entry>()
+
+    fun getEntry(name: String): Entry? = entries[name.removePrefix("/")]
+
+    /**
+     * The names of the entries directly in a directory of the bundle, directories end with "/"
+     */
+    fun list(directory: String): List<String> {
+        var prefix = directory.trim('/').let { if (it.isEmpty()) "" else "$it/" }
+        var children = LinkedHashSet<String>()
+        for (name in entries.keys) {
+            if (name.length <= prefix.length || !name.startsWith(prefix)) continue
+            var rest = name.substring(prefix.length)
+            var separator = rest.indexOf('/')
+            children.add(if (separator == -1) rest else rest.substring(0, separator + 1))
+        }
+        return children.toList()
+    }
+
+    /**
+     * Open the uncompressed bytes of an entry, from start
+     */
+    @Throws(IOException::class)
+    fun open(entry: Entry, start: Long = 0L, count: Long = entry.size - start): InputStream {
+        var offset = dataOffset(entry)
+        return when (entry.method) {
+            METHOD_STORED -> MappedFileInputStream(file, offset + start, count)
+            METHOD_DEFLATED -> {
+                // Raw inflate may need a byte past the data to finish
+                var data = SequenceInputStream(
+                    MappedFileInputStream(file, offset, entry.compressedSize),
+                    ByteArrayInputStream(ByteArray(1))
+                )
+                var inflater = Inflater(true)
+                var stream = object : InflaterInputStream(data, inflater, 64 * 1024) {
+                    override fun close() {
+                        super.close()
+                        inflater.end()
+                    }
+                }
+                skipFully(stream, start)
+                BoundedInputStream(stream, count)
+            }
+            else -> throw ZipException("Unsupported compression method ${entry.method} for ${entry.name}")
+        }
+    }
+
+    private fun skipFully(stream: InputStream, count: Long) {
+        var remaining = count
+        while (remaining > 0) {
+            var skipped = stream.skip(remaining)
+            if (skipped <= 0) {
+                if (stream.read() == -1) throw IOException("Unexpected end of zip entry")
+                skipped = 1
+            }
+            remaining -= skipped
+        }
+    }
+
+    private fun dataOffset(entry: Entry): Long {
+        if (entry.dataOffset >= 0) return entry.dataOffset
+        RandomAccessFile(file, "r").use { raf ->
+            var header = read(raf.channel, entry.localHeaderOffset, LOCAL_SIZE)
+            if (header.getInt(0) != LOCAL_SIGNATURE) {
+                throw ZipException("Invalid local header for ${entry.name}")
+            }
+            var nameLength = header.getShort(26).toInt() and 0xffff
+            var extraLength = header.getShort(28).toInt() and 0xffff
+            entry.dataOffset = entry.localHeaderOffset + LOCAL_SIZE + nameLength + extraLength
+        }
+        return entry.dataOffset
+    }
+
+    private fun readIndex() {
+        RandomAccessFile(file, "r").use { raf ->
+            var channel = raf.channel
+            var tailLength = minOf(length, (END_SIZE + MAX_COMMENT).toLong()).toInt()
+            var tail = read(channel, length - tailLength, tailLength)
+            var end = -1
+            for (position in tailLength - END_SIZE downTo 0) {
+                if (tail.getInt(position) == END_SIGNATURE) {
+                    end = position
+                    break
+                }
+            }
+            if (end == -1) throw ZipException("Not a zip file: ${file.name}")
+
+            var count = tail.getShort(end + 10).toInt() and 0xffff
+            var directorySize = tail.getInt(end + 12).toLong() and 0xffffffffL
+            var directoryOffset = tail.getInt(end + 16).toLong() and 0xffffffffL
+            if (count == 0xffff || directoryOffset == ZIP64_MARKER) {
+                throw ZipException("Zip64 bundles are not supported: ${file.name}")
+            }
+
+            var directory = read(channel, directoryOffset, directorySize.toInt())
+            var position = 0
+            repeat(count) {
+                if (directory.getInt(position) != CENTRAL_SIGNATURE) {
+                    throw ZipException("Invalid central directory in ${file.name}")
+                }
+                var flags = directory.getShort(position + 8).toInt() and 0xffff
+                var method = directory.getShort(position + 10).toInt() and 0xffff
+                var crc = directory.getInt(position + 16).toLong() and 0xffffffffL
+                var compressedSize = directory.getInt(position + 20).toLong() and 0xffffffffL
+                var size = directory.getInt(position + 24).toLong() and 0xffffffffL
+                var nameLength = directory.getShort(position + 28).toInt() and 0xffff
+                var extraLength = directory.getShort(position + 30).toInt() and 0xffff
+                var commentLength = directory.getShort(position + 32).toInt() and 0xffff
+                var localHeaderOffset = directory.getInt(position + 42).toLong() and 0xffffffffL
+                var name = ByteArray(nameLength).also {
+                    directory.position(position + CENTRAL_SIZE)
+                    directory.get(it)
+                }.toString(Charsets.UTF_8)
+
+                if (flags and 1 != 0) throw ZipException("Encrypted entries are not supported: $name")
+                if (compressedSize == ZIP64_MARKER || size == ZIP64_MARKER || localHeaderOffset == ZIP64_MARKER) {
+                    throw ZipException("Zip64 entries are not supported: $name")
+                }
+                entries[name] = Entry(name, method, crc, compressedSize, size, localHeaderOffset)
+                position += CENTRAL_SIZE + nameLength + extraLength + commentLength
+            }
+        }
+    }
+
+    private fun read(channel: FileChannel, position: Long, count: Int): ByteBuffer {
+        var buffer = ByteBuffer.allocate(count).order(ByteOrder.LITTLE_ENDIAN)
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) == -1) {
+                throw ZipException("Unexpected end of ${file.name}")
+            }
+        }
+        buffer.flip()
+        return buffer
+    }
+}
+
+/**
+ * Reads at most count bytes of a stream
+ */
+class BoundedInputStream(private val stream: InputStream, private var remaining: Long) : InputStream() {
+    override fun read(): Int {
+        if (remaining <= 0) return -1
+        var value = stream.read()
+        if (value != -1) remaining--
+        return value
+    }
+
+    override fun read(b: ByteArray, off: Int, len: Int): Int {
+        if (remaining <= 0) return -1
+        var count = stream.read(b, off, minOf(len.toLong(), remaining).toInt())
+        if (count > 0) remaining -= count
+        return count
+    }
+
+    override fun available(): Int = minOf(remaining, stream.available().toLong()).toInt()
+
+    override fun close() {
+        stream.close()
+    }
+}
+
+/**
+ * Zip bundles served in place of extracted directories of bundles/, by location.
+ * Kept in a properties file in the bundles directory.
+ */
+object BundleMounts {
+    const val MOUNTS_FILE = ".mounts.properties"
+
+    private var mounts: Properties? = null
+    private var mountsFile: File? = null
+
+    private fun mounts(bundlesRoot: File): Properties = synchronized(this) {
+        mounts?.takeIf { mountsFile?.parentFile == bundlesRoot } ?: Properties().also { properties ->
+            var file = File(bundlesRoot, MOUNTS_FILE)
+            if (file.exists()) {
+                try {
+                    FileInputStream(file).use { properties.load(it) }
+                } catch (e: IOException) {
+                    // Bundles are mounted again when unzipped again
+                }
+            }
+            mounts = properties
+            mountsFile = file
+        }
+    }
+
+    private fun save() {
+        var file = mountsFile ?: return
+        file.parentFile?.takeIf { !it.exists() }?.mkdirs()
+        var tmp = File(file.path + ".tmp")
+        FileOutputStream(tmp).use { mounts?.store(it, null) }
+        tmp.renameTo(file)
+    }
+
+    private fun normalize(location: String) = "/" + location.trim('/')
+
+    fun mount(bundlesRoot: File, location: String, zip: File) {
+        // Paths are resolved under a mounted directory of bundles/, not bundles/ itself
+        if (normalize(location) == "/") throw IllegalArgumentException("location is null")
+        synchronized(this) {
+            var properties = mounts(bundlesRoot)
+            var previous = properties.setProperty(normalize(location), zip.path) as String?
+            save()
+            previous?.takeIf { it != zip.path }?.let { evictUnused(properties, it) }
+        }
+    }
+
+    /**
+     * Unmount the bundles at a location and under it
+     */
+    fun unmount(bundlesRoot: File, location: String) {
+        var prefix = normalize(location).trimEnd('/') + "/"
+        synchronized(this) {
+            var properties = mounts(bundlesRoot)
+            var removed = properties.stringPropertyNames()
+                .filter { it == normalize(location) || it.startsWith(prefix) }
+                .map { properties.remove(it) as String }
+            if (removed.isNotEmpty()) save()
+            removed.distinct().forEach { evictUnused(properties, it) }
+        }
+    }
+
+    /**
+     * Unmount the bundles read from a zip, or from the zips under it when it's a directory,
+     * once it's deleted or downloaded again
+     */
+    fun unmountZip(bundlesRoot: File, zip: File) {
+        var prefix = zip.path.trimEnd('/') + "/"
+        synchronized(this) {
+            var properties = mounts(bundlesRoot)
+            var removed = properties.stringPropertyNames()
+                .filter { location -> properties.getProperty(location).let { it == zip.path || it.startsWith(prefix) } }
+                .map { properties.remove(it) as String }
+            if (removed.isNotEmpty()) save()
+            removed.distinct().forEach { ZipBundle.evict(File(it)) }
+        }
+    }
+
+    // Called with the lock held, a zip may be mounted at several locations
+    private fun evictUnused(properties: Properties, zip: String) {
+        if (!properties.containsValue(zip)) ZipBundle.evict(File(zip))
+    }
+
+    /**
+     * The locations mounted directly in a directory of bundles/
+     */
+    fun children(bundlesRoot: File, directory: String): List<String> {
+        var prefix = normalize(directory).trimEnd('/') + "/"
+        return synchronized(this) { mounts(bundlesRoot).stringPropertyNames() }
+            .filter { it.length > prefix.length && it.startsWith(prefix) }
+            .map { it.substring(prefix.length).substringBefore('/') }
+            .distinct()
+    }
+
+    /**
+     * The bundle mounted at the longest location starting a path, and the rest of the path
+     */
+    fun resolve(bundlesRoot: File, path: String): Pair<ZipBundle, String>? {
+        var properties = mounts(bundlesRoot)
+        var candidate = normalize(path)
+        while (candidate.isNotEmpty()) {
+            var zip = synchronized(this) { properties.getProperty(candidate) }
+            if (zip != null) {
+                var bundle = try {
+                    ZipBundle.open(File(zip))
+                } catch (e: IOException) {
+                    return null
+                }
+                return bundle to normalize(path).substring(candidate.length).trimStart('/')
+            }
+            candidate = candidate.substring(0, candidate.lastIndexOf('/'))
+        }
+        return null
+    }
+}
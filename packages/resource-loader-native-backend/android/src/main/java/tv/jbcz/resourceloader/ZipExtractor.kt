@@ -0,0 +1,204 @@
+package tv.jbcz.resourceloader
+
+import java.io.File
+import java.io.FileOutputStream
+import java.io.IOException
+import java.io.InterruptedIOException
+import java.util.concurrent.CancellationException
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.ExecutionException
+import java.util.concurrent.ExecutorService
+import java.util.concurrent.Executors
+import java.util.concurrent.Future
+import java.util.concurrent.atomic.AtomicBoolean
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.atomic.AtomicLong
+import java.util.zip.CRC32
+import java.util.zip.CheckedInputStream
+import java.util.zip.ZipEntry
+import java.util.zip.ZipException
+import java.util.zip.ZipFile
+
+/**
+ * Extracts zip files with the entries inflated in parallel.
+ *
+ * Entries are written to a temporary directory next to the destination, which replaces
+ * the destination once every entry has been written and its CRC checked. A failed
+ * extraction leaves the destination as it was.
+ *
+ * Extractions to the same destination run one after the other, and each first removes
+ * the temporary directories an interrupted extraction left next to it.
+ */
+class ZipExtractor {
+    companion object {
+        private const val BUFFER_SIZE = 64 * 1024
+        private val THREADS = minOf(4, maxOf(1, Runtime.getRuntime().availableProcessors()))
+
+        // By canonical path of the destination
+        private val destinationLocks = ConcurrentHashMap<String, Any>()
+    }
+
+    class Progress(val entries: Int, val totalEntries: Int, val bytes: Long, val totalBytes: Long)
+
+    private val pool: ExecutorService by lazy {
+        Executors.newFixedThreadPool(THREADS)
+    }
+
+    /**
+     * Extract a zip to destination, replacing it.
+     * onProgress is called on the extracting threads as entries are written.
+     */
+    @Throws(IOException::class)
+    fun extract(zip: File, destination: File, onProgress: ((Progress) -> Unit)? = null) {
+        var lock = destinationLocks.getOrPut(destination.canonicalPath) { Any() }
+        synchronized(lock) {
+            extractLocked(zip, destination, onProgress)
+        }
+    }
+
+    private fun extractLocked(zip: File, destination: File, onProgress: ((Progress) -> Unit)?) {
+        var parent = destination.absoluteFile.parentFile ?: throw IOException("No parent for $destination")
+        parent.takeIf { !it.exists() }?.mkdirs()
+        sweep(parent, destination.name)
+        var temp = File(parent, ".${destination.name}.${System.nanoTime()}.tmp")
+        var extracted = false
+        try {
+            ZipFile(zip).use { zipFile ->
+                var files = prepare(zipFile, temp)
+                var totalBytes = files.sumOf { it.size.coerceAtLeast(0L) }
+                var entries = AtomicInteger()
+                var bytes = AtomicLong()
+                var stop = AtomicBoolean()
+                onProgress?.invoke(Progress(0, files.size, 0L, totalBytes))
+
+                var futures = files.map { entry ->
+                    pool.submit(Runnable {
+                        if (stop.get()) return@Runnable
+                        write(zipFile, entry, File(temp, entry.name), stop) { count ->
+                            bytes.addAndGet(count)
+                        }
+                        onProgress?.invoke(Progress(entries.incrementAndGet(), files.size, bytes.get(), totalBytes))
+                    })
+                }
+                await(futures, stop)
+            }
+            replace(temp, destination)
+            extracted = true
+        } finally {
+            if (!extracted) delete(temp)
+        }
+    }
+
+    fun shutdown() {
+        // Entries never started are cancelled so their extraction doesn't wait for them
+        pool.shutdownNow().forEach { (it as? Future<*>)?.cancel(false) }
+    }
+
+    /**
+     * Delete the ".name.<time>.tmp" and ".name.<time>.old" directories of a destination
+     * left by an extraction killed before it cleaned up
+     */
+    private fun sweep(parent: File, name: String) {
+        var stale = Regex(Regex.escape(".$name.") + "\\d+\\.(tmp|old)")
+        parent.listFiles { file -> stale.matches(file.name) }?.forEach { delete(it) }
+    }
+
+    /**
+     * Create the directories of the entries, and return the entries of files
+     */
+    private fun prepare(zipFile: ZipFile, root: File): List<ZipEntry> {
+        root.mkdirs()
+        var rootPath = root.canonicalPath + File.separator
+        var files = ArrayList<ZipEntry>()
+        for (entry in zipFile.entries().toList()) {
+            var file = File(root, entry.name)
+            // Names like "../x" would be written out of the destination
+            if (!file.canonicalPath.startsWith(rootPath)) {
+                throw ZipException("Entry is outside of the destination: ${entry.name}")
+            }
+            if (entry.isDirectory) {
+                file.mkdirs()
+            } else {
+                file.parentFile?.takeIf { !it.exists() }?.mkdirs()
+                files.add(entry)
+            }
+        }
+        return files
+    }
+
+    private fun write(zipFile: ZipFile, entry: ZipEntry, file: File, stop: AtomicBoolean, onBytes: (Long) -> Unit) {
+        var checksum = CRC32()
+        var written = 0L
+        CheckedInputStream(zipFile.getInputStream(entry), checksum).use { input ->
+            FileOutputStream(file).use { output ->
+                var buffer = ByteArray(BUFFER_SIZE)
+                var count = input.read(buffer)
+                while (count != -1) {
+                    if (stop.get()) throw InterruptedIOException("Extraction stopped")
+                    output.write(buffer, 0, count)
+                    written += count
+                    onBytes(count.toLong())
+                    count = input.read(buffer)
+                }
+            }
+        }
+        if (entry.crc != -1L && checksum.value != entry.crc) {
+            throw ZipException("CRC mismatch for ${entry.name}")
+        }
+        if (entry.size != -1L && written != entry.size) {
+            throw ZipException("Size mismatch for ${entry.name}")
+        }
+    }
+
+    /**
+     * Wait for every entry to be written. After the first failure the other entries stop
+     * early, but are still waited for, so nothing reads the zip or writes to the temporary
+     * directory once this returns.
+     */
+    private fun await(futures: List<Future<*>>, stop: AtomicBoolean) {
+        var error: Throwable? = null
+        var interrupted = false
+        for (future in futures) {
+            while (true) {
+                try {
+                    future.get()
+                    break
+                } catch (e: ExecutionException) {
+                    error = error ?: e.cause
+                    stop.set(true)
+                    break
+                } catch (e: CancellationException) {
+                    error = error ?: e
+                    stop.set(true)
+                    break
+                } catch (e: InterruptedException) {
+                    // Keep waiting, the entries being written stop at their next read
+                    error = error ?: e
+                    interrupted = true
+                    stop.set(true)
+                }
+            }
+        }
+        if (interrupted) Thread.currentThread().interrupt()
+        error?.let { throw it as? IOException ?: IOException(it) }
+    }
+
+    /**
+     * Move the extracted directory in place of destination with renames
+     */
+    private fun replace(temp: File, destination: File) {
+        var old = File(temp.parentFile, ".${destination.name}.${System.nanoTime()}.old")
+        if (destination.exists() && !destination.renameTo(old)) {
+            throw IOException("Unable to replace $destination")
+        }
+        if (!temp.renameTo(destination)) {
+            old.renameTo(destination)
+            throw IOException("Unable to move the extracted files to $destination")
+        }
+        delete(old)
+    }
+
+    private fun delete(file: File) {
+        if (file.exists()) file.deleteRecursively()
+    }
+}
@@ -1,21 +1,35 @@
 package tv.jbcz.resourceloader.database
 
 
+import android.app.DownloadManager
 import android.content.ContentValues
 import android.content.Context
 import android.database.Cursor
+import android.database.DatabaseUtils
 import android.database.sqlite.SQLiteDatabase
 import android.database.sqlite.SQLiteOpenHelper
+import android.database.sqlite.SQLiteStatement
 import android.provider.BaseColumns
 import android.provider.BaseColumns._ID
 import android.util.Log
+import androidx.core.net.toUri
+import java.io.File
+import tv.jbcz.resourceloader.DownloadEngine
 import tv.jbcz.resourceloader.base64Encode
 
 data class FileEntity(
     var id: Long? = 0,
     var downloadmanager_id: Long,
     var hash: String? = null,
-    var resourceId: String
+    var resourceId: String,
+    var uri: String? = null,
+    var location: String? = null,
+    var status: Int = STATUS_NOT_CREATED,
+    var total: Long = 0L,
+    var reason: String? = null,
+    var fileHash: String? = null,
+    var fileSize: Long = 0L,
+    var fileMtime: Long = 0L
 ) : BaseColumns {
     companion object {
         @JvmStatic
@@ -30,97 +44,206 @@ data class FileEntity(
         @JvmStatic
         val COL_RESOURCE = "resource_id"
 
+        @JvmStatic
+        val COL_URI = "uri"
+
+        @JvmStatic
+        val COL_LOCATION = "location"
+
+        @JvmStatic
+        val COL_STATUS = "status"
+
+        @JvmStatic
+        val COL_TOTAL = "total"
+
+        @JvmStatic
+        val COL_REASON = "reason"
+
+        // The md5 of the downloaded file, valid while its size and mtime are unchanged
+        @JvmStatic
+        val COL_FILE_HASH = "file_hash"
+
+        @JvmStatic
+        val COL_FILE_SIZE = "file_size"
+
+        @JvmStatic
+        val COL_FILE_MTIME = "file_mtime"
+
+        // Rows recorded for DownloadManager, their files are downloaded again
+        const val STATUS_NOT_CREATED = -6
     }
 }
 
 class FileInfoDao(context: Context) {
+    companion object {
+        // Below SQLITE_MAX_VARIABLE_NUMBER, 999 on older Android versions
+        private const val MAX_QUERY_ARGUMENTS = 900
+
+        // The columns written by upsert and update, in binding order
+        private val COLUMNS = arrayOf(
+            FileEntity.COL_DOWNLOADMANAGER_ID_FK,
+            FileEntity.COL_HASH,
+            FileEntity.COL_RESOURCE,
+            FileEntity.COL_URI,
+            FileEntity.COL_LOCATION,
+            FileEntity.COL_STATUS,
+            FileEntity.COL_TOTAL,
+            FileEntity.COL_REASON,
+            FileEntity.COL_FILE_HASH,
+            FileEntity.COL_FILE_SIZE,
+            FileEntity.COL_FILE_MTIME
+        )
+    }
+
     val dbHelper: SQLiteOpenHelper by lazy {
         OpenDbHelper(context)
     }
 
+    // Compiled once, a resource has a single row updated on every download. The row is
+    // updated in place rather than replaced, so its _id stays the same
+    private val insertStatement: SQLiteStatement by lazy {
+        dbHelper.writableDatabase.compileStatement(
+            "INSERT INTO ${FileEntity.TABLE_NAME} (${COLUMNS.joinToString(",")}) " +
+                    "VALUES (${COLUMNS.joinToString(",") { "?" }})"
+        )
+    }
+    private val updateByResourceStatement: SQLiteStatement by lazy {
+        dbHelper.writableDatabase.compileStatement(
+            "UPDATE ${FileEntity.TABLE_NAME} SET ${COLUMNS.joinToString(",") { "$it = ?" }} " +
+                    "WHERE ${FileEntity.COL_RESOURCE} = ?"
+        )
+    }
+    private val idByResourceStatement: SQLiteStatement by lazy {
+        dbHelper.writableDatabase.compileStatement(
+            "SELECT ${BaseColumns._ID} FROM ${FileEntity.TABLE_NAME} WHERE ${FileEntity.COL_RESOURCE} = ?"
+        )
+    }
+    private val updateStatement: SQLiteStatement by lazy {
+        dbHelper.writableDatabase.compileStatement(
+            "UPDATE ${FileEntity.TABLE_NAME} SET ${COLUMNS.joinToString(",") { "$it = ?" }} " +
+                    "WHERE ${BaseColumns._ID} = ?"
+        )
+    }
+
     private fun parseFileEntity(cursor: Cursor) = FileEntity(
         cursor.getLong(cursor.getColumnIndexOrThrow(BaseColumns._ID)),
         cursor.getLong(cursor.getColumnIndexOrThrow(FileEntity.COL_DOWNLOADMANAGER_ID_FK)),
         cursor.getString(cursor.getColumnIndexOrThrow(FileEntity.COL_HASH)),
-        cursor.getString(cursor.getColumnIndexOrThrow(FileEntity.COL_RESOURCE))
+        cursor.getString(cursor.getColumnIndexOrThrow(FileEntity.COL_RESOURCE)),
+        cursor.getString(cursor.getColumnIndexOrThrow(FileEntity.COL_URI)),
+        cursor.getString(cursor.getColumnIndexOrThrow(FileEntity.COL_LOCATION)),
+        cursor.getInt(cursor.getColumnIndexOrThrow(FileEntity.COL_STATUS)),
+        cursor.getLong(cursor.getColumnIndexOrThrow(FileEntity.COL_TOTAL)),
+        cursor.getString(cursor.getColumnIndexOrThrow(FileEntity.COL_REASON)),
+        cursor.getString(cursor.getColumnIndexOrThrow(FileEntity.COL_FILE_HASH)),
+        cursor.getLong(cursor.getColumnIndexOrThrow(FileEntity.COL_FILE_SIZE)),
+        cursor.getLong(cursor.getColumnIndexOrThrow(FileEntity.COL_FILE_MTIME))
     )
 
+    private fun queryFirst(selection: String, args: Array<String>): FileEntity? =
+        dbHelper.readableDatabase.query(
+            FileEntity.TABLE_NAME, null, selection, args,
+            null, null, "${BaseColumns._ID} DESC", "1"
+        )?.use { cursor ->
+            if (cursor.moveToNext()) parseFileEntity(cursor) else null
+        }
+
     fun queryAll() = dbHelper.readableDatabase.query(
         FileEntity.TABLE_NAME, null, null, null,
         null, null, null
-    )?.let {
+    )?.use {
         ArrayList<FileEntity>().apply {
             while (it.moveToNext()) add(parseFileEntity(it))
         }
     }
 
-    fun queryByDownloadId(id: Long):FileEntity? {
-        return dbHelper.readableDatabase.query(
-            FileEntity.TABLE_NAME, null,
-            "${FileEntity.COL_DOWNLOADMANAGER_ID_FK} = ?",
-            arrayOf(id.toString()),
-            null, null, "${BaseColumns._ID}"
-        )?.let { cursor ->
-            ArrayList<FileEntity>().also {
+    fun queryByDownloadId(id: Long): FileEntity? =
+        queryFirst("${FileEntity.COL_DOWNLOADMANAGER_ID_FK} = ?", arrayOf(id.toString()))
+
+    /**
+     * The row of a resource, resource_id is unique
+     */
+    fun queryByResourceId(id: String): FileEntity? =
+        queryFirst("${FileEntity.COL_RESOURCE} = ?", arrayOf(id))
+
+    /**
+     * The rows of many resources, in as many IN queries as the SQLite variable limit requires
+     */
+    fun queryByResourceIds(ids: Collection<String>): Map<String, FileEntity> {
+        var result = HashMap<String, FileEntity>()
+        var db = dbHelper.readableDatabase
+        ids.distinct().chunked(MAX_QUERY_ARGUMENTS).forEach { chunk ->
+            db.query(
+                FileEntity.TABLE_NAME, null,
+                "${FileEntity.COL_RESOURCE} IN (${chunk.joinToString(",") { "?" }})",
+                chunk.toTypedArray(),
+                null, null, null
+            )?.use { cursor ->
                 while (cursor.moveToNext()) {
-                    parseFileEntity(cursor)
-                        ?.run {
-                            it.add(this)
-                        }
+                    parseFileEntity(cursor).run { result[resourceId] = this }
                 }
-            }.lastOrNull()
+            }
         }
+        return result
     }
 
-    fun queryByResourceId(id: String): List<FileEntity>? {
-        var db = dbHelper.writableDatabase
-        return db.query(
-            FileEntity.TABLE_NAME, null,
-            "${FileEntity.COL_RESOURCE} = ?",
-            arrayOf(id),
-            null, null, "${_ID}"
-        )?.let { cursor ->
-            if (cursor.count > 0) {
-                ArrayList<FileEntity>().also {
-                    while (cursor.moveToNext()) {
-                        parseFileEntity(cursor)
-                            ?.run {
-                                it.add(this)
-                            }
-                    }
-                }
-            } else null
-        }
+    fun query(hash: String): FileEntity? =
+        queryFirst("${FileEntity.COL_HASH} = ?", arrayOf(hash))
+
+    /**
+     * The latest downloaded file whose md5 is hash
+     */
+    fun queryByFileHash(hash: String): FileEntity? =
+        queryFirst(
+            "${FileEntity.COL_FILE_HASH} = ? AND ${FileEntity.COL_STATUS} = 0 AND ${FileEntity.COL_LOCATION} IS NOT NULL",
+            arrayOf(hash)
+        )
+
+    /**
+     * The number of resources stored in a file, other than resourceId
+     */
+    fun countByLocation(location: String, resourceId: String): Long =
+        DatabaseUtils.queryNumEntries(
+            dbHelper.readableDatabase, FileEntity.TABLE_NAME,
+            "${FileEntity.COL_LOCATION} = ? AND ${FileEntity.COL_RESOURCE} != ?",
+            arrayOf(location, resourceId)
+        )
+
+    private fun bind(statement: SQLiteStatement, model: FileEntity) {
+        statement.clearBindings()
+        statement.bindLong(1, model.downloadmanager_id)
+        bindString(statement, 2, model.hash)
+        statement.bindString(3, model.resourceId)
+        bindString(statement, 4, model.uri)
+        bindString(statement, 5, model.location)
+        statement.bindLong(6, model.status.toLong())
+        statement.bindLong(7, model.total)
+        bindString(statement, 8, model.reason)
+        bindString(statement, 9, model.fileHash)
+        statement.bindLong(10, model.fileSize)
+        statement.bindLong(11, model.fileMtime)
     }
-    fun query(hash: String): FileEntity? {
-        return dbHelper.readableDatabase.query(
-            FileEntity.TABLE_NAME, null,
-            "${FileEntity.COL_HASH} = ?",
-            arrayOf(hash),
-            null, null, "${BaseColumns._ID}"
-        )?.let { cursor ->
-            if (cursor.count > 0) {
-                ArrayList<FileEntity>().also {
-                    while (cursor.moveToNext()) {
-                        parseFileEntity(cursor)
-                            ?.run {
-                                it.add(this)
-                            }
-                    }
-                }.lastOrNull()
-            } else null
-        }
+
+    private fun bindString(statement: SQLiteStatement, index: Int, value: String?) {
+        if (value == null) statement.bindNull(index) else statement.bindString(index, value)
     }
 
-    fun insert(model: FileEntity) {
-        var db = dbHelper.writableDatabase
-        db.insert(FileEntity.TABLE_NAME, null,
-            ContentValues().apply {
-                put(FileEntity.COL_DOWNLOADMANAGER_ID_FK, model.downloadmanager_id)
-                put(FileEntity.COL_HASH, model.hash)
-                put(FileEntity.COL_RESOURCE, model.resourceId)
-            })
-//        db.close()
+    /**
+     * Update the row of a resource, or insert it if the resource has none.
+     * INSERT ... ON CONFLICT DO UPDATE needs SQLite 3.24, newer than older Android versions ship
+     */
+    fun upsert(model: FileEntity) {
+        synchronized(insertStatement) {
+            bind(updateByResourceStatement, model)
+            updateByResourceStatement.bindString(COLUMNS.size + 1, model.resourceId)
+            if (updateByResourceStatement.executeUpdateDelete() > 0) {
+                idByResourceStatement.bindString(1, model.resourceId)
+                model.id = idByResourceStatement.simpleQueryForLong()
+            } else {
+                bind(insertStatement, model)
+                model.id = insertStatement.executeInsert()
+            }
+        }
     }
 
     fun delete(model: FileEntity) {
@@ -134,32 +257,143 @@ class FileInfoDao(context: Context) {
     }
 
     fun update(model: FileEntity) {
-
+        synchronized(updateStatement) {
+            bind(updateStatement, model)
+            updateStatement.bindLong(COLUMNS.size + 1, model.id ?: 0L)
+            updateStatement.executeUpdateDelete()
+        }
     }
 }
 
-class OpenDbHelper(context: Context) : SQLiteOpenHelper(
-    context, "file_info.db", null, 2
+class OpenDbHelper(private val context: Context) : SQLiteOpenHelper(
+    context, "file_info.db", null, 6
 ) {
+    companion object {
+        private const val TAG = "OpenDbHelper"
+    }
+
+    override fun onConfigure(db: SQLiteDatabase?) {
+        super.onConfigure(db)
+        // Readers (queries, the web server) don't wait for download updates
+        db?.enableWriteAheadLogging()
+    }
+
     override fun onCreate(db: SQLiteDatabase?) {
         db?.run {
             execSQL(
                 "CREATE TABLE ${FileEntity.TABLE_NAME} ($_ID INTEGER PRIMARY KEY AUTOINCREMENT NOT NULL," +
                         "${FileEntity.COL_DOWNLOADMANAGER_ID_FK} INTEGER," +
                         "${FileEntity.COL_HASH} TEXT," +
-                        "${FileEntity.COL_RESOURCE} TEXT)"
+                        "${FileEntity.COL_RESOURCE} TEXT," +
+                        "${FileEntity.COL_URI} TEXT," +
+                        "${FileEntity.COL_LOCATION} TEXT," +
+                        "${FileEntity.COL_STATUS} INTEGER NOT NULL DEFAULT ${FileEntity.STATUS_NOT_CREATED}," +
+                        "${FileEntity.COL_TOTAL} INTEGER NOT NULL DEFAULT 0," +
+                        "${FileEntity.COL_REASON} TEXT," +
+                        "${FileEntity.COL_FILE_HASH} TEXT," +
+                        "${FileEntity.COL_FILE_SIZE} INTEGER NOT NULL DEFAULT 0," +
+                        "${FileEntity.COL_FILE_MTIME} INTEGER NOT NULL DEFAULT 0)"
             )
+            createIndexes(this)
         }
     }
 
+    private fun createIndexes(db: SQLiteDatabase) {
+        db.execSQL(
+            "CREATE UNIQUE INDEX IF NOT EXISTS ${FileEntity.TABLE_NAME}_${FileEntity.COL_RESOURCE} " +
+                    "ON ${FileEntity.TABLE_NAME} (${FileEntity.COL_RESOURCE})"
+        )
+        db.execSQL(
+            "CREATE INDEX IF NOT EXISTS ${FileEntity.TABLE_NAME}_${FileEntity.COL_DOWNLOADMANAGER_ID_FK} " +
+                    "ON ${FileEntity.TABLE_NAME} (${FileEntity.COL_DOWNLOADMANAGER_ID_FK})"
+        )
+        db.execSQL(
+            "CREATE INDEX IF NOT EXISTS ${FileEntity.TABLE_NAME}_${FileEntity.COL_HASH} " +
+                    "ON ${FileEntity.TABLE_NAME} (${FileEntity.COL_HASH})"
+        )
+        // Files are found by content, and shared by the resources of the same content
+        db.execSQL(
+            "CREATE INDEX IF NOT EXISTS ${FileEntity.TABLE_NAME}_${FileEntity.COL_FILE_HASH} " +
+                    "ON ${FileEntity.TABLE_NAME} (${FileEntity.COL_FILE_HASH})"
+        )
+        db.execSQL(
+            "CREATE INDEX IF NOT EXISTS ${FileEntity.TABLE_NAME}_${FileEntity.COL_LOCATION} " +
+                    "ON ${FileEntity.TABLE_NAME} (${FileEntity.COL_LOCATION})"
+        )
+    }
+
     override fun onUpgrade(db: SQLiteDatabase?, oldVersion: Int, newVersion: Int) {
-        when (oldVersion) {
-            else -> {
-                db?.run {
-                    execSQL("DROP TABLE ${FileEntity.TABLE_NAME}")
+        if (oldVersion < 2) {
+            db?.run {
+                execSQL("DROP TABLE ${FileEntity.TABLE_NAME}")
+            }
+            onCreate(db)
+            return
+        }
+        db?.run {
+            if (oldVersion < 3) {
+                // Keep the rows. Those whose DownloadManager file is still there keep it, the
+                // others are marked as not created so their files are downloaded again
+                execSQL("ALTER TABLE ${FileEntity.TABLE_NAME} ADD COLUMN ${FileEntity.COL_URI} TEXT")
+                execSQL("ALTER TABLE ${FileEntity.TABLE_NAME} ADD COLUMN ${FileEntity.COL_LOCATION} TEXT")
+                execSQL("ALTER TABLE ${FileEntity.TABLE_NAME} ADD COLUMN ${FileEntity.COL_STATUS} INTEGER NOT NULL DEFAULT ${FileEntity.STATUS_NOT_CREATED}")
+                execSQL("ALTER TABLE ${FileEntity.TABLE_NAME} ADD COLUMN ${FileEntity.COL_TOTAL} INTEGER NOT NULL DEFAULT 0")
+                execSQL("ALTER TABLE ${FileEntity.TABLE_NAME} ADD COLUMN ${FileEntity.COL_REASON} TEXT")
+                importDownloadManagerFiles(this)
+            }
+            if (oldVersion < 4) {
+                // Files downloaded before are hashed again the first time they are checked
+                execSQL("ALTER TABLE ${FileEntity.TABLE_NAME} ADD COLUMN ${FileEntity.COL_FILE_HASH} TEXT")
+                execSQL("ALTER TABLE ${FileEntity.TABLE_NAME} ADD COLUMN ${FileEntity.COL_FILE_SIZE} INTEGER NOT NULL DEFAULT 0")
+                execSQL("ALTER TABLE ${FileEntity.TABLE_NAME} ADD COLUMN ${FileEntity.COL_FILE_MTIME} INTEGER NOT NULL DEFAULT 0")
+            }
+            if (oldVersion < 5) {
+                // Only the latest row of a resource was ever read, keep it alone
+                execSQL(
+                    "DELETE FROM ${FileEntity.TABLE_NAME} WHERE $_ID NOT IN " +
+                            "(SELECT MAX($_ID) FROM ${FileEntity.TABLE_NAME} GROUP BY ${FileEntity.COL_RESOURCE})"
+                )
+                createIndexes(this)
+            }
+            if (oldVersion < 6) {
+                createIndexes(this)
+            }
+        }
+    }
+
+    /**
+     * Record the files downloaded by DownloadManager for the rows of version 2, their md5
+     * is checked the first time they are requested with one
+     */
+    private fun importDownloadManagerFiles(db: SQLiteDatabase) {
+        var downloadManager = context.getSystemService(Context.DOWNLOAD_SERVICE) as? DownloadManager ?: return
+        var rows = db.query(
+            FileEntity.TABLE_NAME, arrayOf(_ID, FileEntity.COL_DOWNLOADMANAGER_ID_FK),
+            null, null, null, null, null
+        )?.use { cursor ->
+            ArrayList<Pair<Long, Long>>().apply {
+                while (cursor.moveToNext()) add(cursor.getLong(0) to cursor.getLong(1))
+            }
+        } ?: return
+        for ((id, downloadId) in rows) {
+            try {
+                downloadManager.query(DownloadManager.Query().setFilterById(downloadId))?.use { cursor ->
+                    if (!cursor.moveToNext() ||
+                        cursor.getInt(cursor.getColumnIndexOrThrow(DownloadManager.COLUMN_STATUS)) != DownloadManager.STATUS_SUCCESSFUL
+                    ) return@use
+                    var file = cursor.getString(cursor.getColumnIndexOrThrow(DownloadManager.COLUMN_LOCAL_URI))
+                        ?.toUri()?.path?.let { File(it) }
+                        ?.takeIf { it.isFile } ?: return@use
+                    db.update(FileEntity.TABLE_NAME, ContentValues().apply {
+                        put(FileEntity.COL_URI, cursor.getString(cursor.getColumnIndexOrThrow(DownloadManager.COLUMN_URI)))
+                        put(FileEntity.COL_LOCATION, file.path)
+                        put(FileEntity.COL_STATUS, DownloadEngine.STATUS_SUCCESSFUL)
+                        put(FileEntity.COL_TOTAL, file.length())
+                    }, "$_ID = ?", arrayOf(id.toString()))
                 }
+            } catch (e: Exception) {
+                Log.i(TAG, "unable to import download $downloadId: ${e.localizedMessage}")
             }
         }
-        onCreate(db)
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,76 @@
+package tv.jbcz.resourceloader
+
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertNull
+import org.junit.Assert.assertTrue
+import org.junit.Test
+
+class HttpHeadersTest {
+
+    @Test
+    fun parseRangeOfStartAndEnd() {
+        assertEquals(0L..99L, HttpHeaders.parseRange("bytes=0-99", 1000))
+        assertEquals(500L..999L, HttpHeaders.parseRange("bytes=500-", 1000))
+        assertEquals(900L..999L, HttpHeaders.parseRange("bytes=900-5000", 1000))
+    }
+
+    @Test
+    fun parseRangeOfSuffix() {
+        assertEquals(900L..999L, HttpHeaders.parseRange("bytes=-100", 1000))
+        assertEquals(0L..999L, HttpHeaders.parseRange("bytes=-5000", 1000))
+        assertTrue(HttpHeaders.parseRange("bytes=-0", 1000)!!.isEmpty())
+        assertTrue(HttpHeaders.parseRange("bytes=-10", 0)!!.isEmpty())
+    }
+
+    @Test
+    fun parseRangeKeepsTheFirstOfManyRanges() {
+        assertEquals(0L..9L, HttpHeaders.parseRange("bytes=0-9, 20-29", 1000))
+    }
+
+    @Test
+    fun parseRangeIgnoresInvalidHeaders() {
+        assertNull(HttpHeaders.parseRange("items=0-9", 1000))
+        assertNull(HttpHeaders.parseRange("bytes=abc", 1000))
+        assertNull(HttpHeaders.parseRange("bytes=a-9", 1000))
+        assertNull(HttpHeaders.parseRange("bytes=9-0", 1000))
+    }
+
+    @Test
+    fun parseRangeBeyondTheLengthIsUnsatisfiable() {
+        assertTrue(HttpHeaders.parseRange("bytes=1000-", 1000)!!.isEmpty())
+        assertTrue(HttpHeaders.parseRange("bytes=2000-2999", 1000)!!.isEmpty())
+        assertTrue(HttpHeaders.parseRange("bytes=0-", 0)!!.isEmpty())
+    }
+
+    @Test
+    fun isNotModifiedByEtag() {
+        assertTrue(HttpHeaders.isNotModified(mapOf("if-none-match" to "\"a\""), "\"a\"", 0))
+        assertTrue(HttpHeaders.isNotModified(mapOf("if-none-match" to "\"b\", W/\"a\""), "\"a\"", 0))
+        assertTrue(HttpHeaders.isNotModified(mapOf("if-none-match" to "*"), "\"a\"", 0))
+        assertFalse(HttpHeaders.isNotModified(mapOf("if-none-match" to "\"b\""), "\"a\"", 0))
+    }
+
+    @Test
+    fun isNotModifiedByDateToTheSecond() {
+        var lastModified = 1445412480000L
+        var date = HttpHeaders.formatDate(lastModified)
+
+        assertEquals("Wed, 21 Oct 2015 07:28:00 GMT", date)
+        assertTrue(HttpHeaders.isNotModified(mapOf("if-modified-since" to date), "\"a\"", lastModified + 999))
+        assertFalse(HttpHeaders.isNotModified(mapOf("if-modified-since" to date), "\"a\"", lastModified + 1000))
+        assertFalse(HttpHeaders.isNotModified(mapOf("if-modified-since" to "yesterday"), "\"a\"", lastModified))
+        assertFalse(HttpHeaders.isNotModified(emptyMap(), "\"a\"", lastModified))
+    }
+
+    @Test
+    fun etagTakesPrecedenceOverDate() {
+        var lastModified = 1445412480000L
+        var headers = mapOf(
+            "if-none-match" to "\"b\"",
+            "if-modified-since" to HttpHeaders.formatDate(lastModified)
+        )
+
+        assertFalse(HttpHeaders.isNotModified(headers, "\"a\"", lastModified))
+    }
+}
@@ -0,0 +1,231 @@
+package tv.jbcz.resourceloader
+
+import org.junit.After
+import org.junit.Assert.assertArrayEquals
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertNotNull
+import org.junit.Assert.assertNotSame
+import org.junit.Assert.assertNull
+import org.junit.Assert.assertSame
+import org.junit.Assert.assertTrue
+import org.junit.Assert.fail
+import org.junit.Before
+import org.junit.Test
+import java.io.ByteArrayOutputStream
+import java.io.File
+import java.nio.file.Files
+import java.util.zip.CRC32
+import java.util.zip.ZipEntry
+import java.util.zip.ZipException
+import java.util.zip.ZipOutputStream
+
+class ZipBundleTest {
+    private lateinit var directory: File
+    private val page = "<html>${"page ".repeat(200)}</html>".toByteArray()
+    private val media = ByteArray(100_000) { (it * 31 % 251).toByte() }
+
+    @Before
+    fun setUp() {
+        directory = Files.createTempDirectory("bundles").toFile()
+    }
+
+    @After
+    fun tearDown() {
+        directory.deleteRecursively()
+    }
+
+    @Test
+    fun readIndexFindsEntries() {
+        var bundle = ZipBundle.open(writeZip("bundle.zip", zipBytes()))
+
+        var html = bundle.getEntry("index.html")!!
+        assertEquals(ZipBundle.METHOD_DEFLATED, html.method)
+        assertEquals(page.size.toLong(), html.size)
+        assertTrue(html.compressedSize < html.size)
+
+        var video = bundle.getEntry("/media/video.mp4")!!
+        assertEquals(ZipBundle.METHOD_STORED, video.method)
+        assertEquals(media.size.toLong(), video.compressedSize)
+        assertTrue(bundle.getEntry("media/")!!.isDirectory)
+        assertNull(bundle.getEntry("missing.txt"))
+    }
+
+    @Test
+    fun listGivesTheDirectChildren() {
+        var bundle = ZipBundle.open(writeZip("bundle.zip", zipBytes()))
+
+        assertEquals(setOf("index.html", "media/"), bundle.list("/").toSet())
+        assertEquals(setOf("video.mp4", "audio/"), bundle.list("media").toSet())
+        assertEquals(listOf("track.mp3"), bundle.list("/media/audio/"))
+        assertTrue(bundle.list("missing").isEmpty())
+    }
+
+    @Test
+    fun openStoredEntryAtAnOffset() {
+        var bundle = ZipBundle.open(writeZip("bundle.zip", zipBytes()))
+        var video = bundle.getEntry("media/video.mp4")!!
+
+        assertArrayEquals(media, bundle.open(video).use { it.readBytes() })
+        assertArrayEquals(media.copyOfRange(50_000, 50_100), bundle.open(video, 50_000, 100).use { it.readBytes() })
+        assertArrayEquals(media.copyOfRange(99_990, 100_000), bundle.open(video, 99_990).use { it.readBytes() })
+    }
+
+    @Test
+    fun openDeflatedEntryAtAnOffset() {
+        var bundle = ZipBundle.open(writeZip("bundle.zip", zipBytes()))
+        var html = bundle.getEntry("index.html")!!
+
+        assertArrayEquals(page, bundle.open(html).use { it.readBytes() })
+        assertArrayEquals(page.copyOfRange(100, 150), bundle.open(html, 100, 50).use { it.readBytes() })
+        assertArrayEquals(page.copyOfRange(page.size - 7, page.size), bundle.open(html, page.size - 7L).use { it.readBytes() })
+    }
+
+    @Test
+    fun openReadsAChangedZipAgain() {
+        var file = writeZip("bundle.zip", zipBytes())
+        var bundle = ZipBundle.open(file)
+        assertSame(bundle, ZipBundle.open(file))
+
+        writeZip("bundle.zip", zipBytes(extra = "more.txt"))
+        file.setLastModified(file.lastModified() + 2000)
+        var changed = ZipBundle.open(file)
+
+        assertNotSame(bundle, changed)
+        assertNotNull(changed.getEntry("more.txt"))
+    }
+
+    @Test
+    fun zip64BundlesAreRejected() {
+        var bytes = zipBytes()
+        // Entry count of the end of central directory record
+        var end = lastIndexOf(bytes, byteArrayOf(0x50, 0x4b, 0x05, 0x06))
+        bytes[end + 10] = 0xff.toByte()
+        bytes[end + 11] = 0xff.toByte()
+
+        assertRejected(writeZip("zip64.zip", bytes), "Zip64")
+    }
+
+    @Test
+    fun zip64EntriesAreRejected() {
+        var bytes = zipBytes()
+        // Compressed size of the first central directory header
+        var central = indexOf(bytes, byteArrayOf(0x50, 0x4b, 0x01, 0x02))
+        for (i in 20 until 24) bytes[central + i] = 0xff.toByte()
+
+        assertRejected(writeZip("zip64.zip", bytes), "Zip64")
+    }
+
+    @Test
+    fun encryptedEntriesAreRejected() {
+        var bytes = zipBytes()
+        var central = indexOf(bytes, byteArrayOf(0x50, 0x4b, 0x01, 0x02))
+        bytes[central + 8] = (bytes[central + 8].toInt() or 1).toByte()
+
+        assertRejected(writeZip("encrypted.zip", bytes), "Encrypted")
+    }
+
+    @Test
+    fun resolveUsesTheLongestMountedLocation() {
+        var root = File(directory, "bundles")
+        var game = writeZip("game.zip", zipBytes())
+        var levels = writeZip("levels.zip", zipBytes(extra = "level1.json"))
+        BundleMounts.mount(root, "game", game)
+        BundleMounts.mount(root, "/game/levels/", levels)
+
+        var (bundle, name) = BundleMounts.resolve(root, "/game/media/video.mp4")!!
+        assertEquals(game, bundle.file)
+        assertEquals("media/video.mp4", name)
+
+        var (nested, nestedName) = BundleMounts.resolve(root, "game/levels/level1.json")!!
+        assertEquals(levels, nested.file)
+        assertEquals("level1.json", nestedName)
+
+        assertEquals("", BundleMounts.resolve(root, "/game")!!.second)
+        assertNull(BundleMounts.resolve(root, "/gameplay/index.html"))
+        assertEquals(listOf("game"), BundleMounts.children(root, "/"))
+    }
+
+    @Test
+    fun unmountRemovesNestedMountsAndTheirIndexes() {
+        var root = File(directory, "bundles")
+        var game = writeZip("game.zip", zipBytes())
+        BundleMounts.mount(root, "game", game)
+        BundleMounts.mount(root, "game/levels", writeZip("levels.zip", zipBytes()))
+        var bundle = BundleMounts.resolve(root, "game/index.html")!!.first
+
+        BundleMounts.unmount(root, "/game")
+
+        assertNull(BundleMounts.resolve(root, "game/index.html"))
+        assertNull(BundleMounts.resolve(root, "game/levels/index.html"))
+        assertNotSame(bundle, ZipBundle.open(game))
+    }
+
+    @Test
+    fun unmountZipRemovesEveryLocationOfTheZip() {
+        var root = File(directory, "bundles")
+        var game = writeZip("game.zip", zipBytes())
+        var levels = writeZip("levels.zip", zipBytes())
+        BundleMounts.mount(root, "game", game)
+        BundleMounts.mount(root, "copy", game)
+        BundleMounts.mount(root, "levels", levels)
+
+        BundleMounts.unmountZip(root, game)
+
+        assertNull(BundleMounts.resolve(root, "game/index.html"))
+        assertNull(BundleMounts.resolve(root, "copy/index.html"))
+        assertEquals(levels, BundleMounts.resolve(root, "levels/index.html")!!.first.file)
+
+        BundleMounts.unmountZip(root, directory)
+        assertNull(BundleMounts.resolve(root, "levels/index.html"))
+    }
+
+    @Test(expected = IllegalArgumentException::class)
+    fun mountAtTheBundlesDirectoryIsRejected() {
+        BundleMounts.mount(File(directory, "bundles"), "/", writeZip("game.zip", zipBytes()))
+    }
+
+    private fun assertRejected(file: File, reason: String) {
+        try {
+            ZipBundle.open(file)
+            fail("$file was opened")
+        } catch (e: ZipException) {
+            assertTrue(e.message, e.message!!.startsWith(reason))
+        }
+    }
+
+    private fun zipBytes(extra: String? = null): ByteArray {
+        var bytes = ByteArrayOutputStream()
+        ZipOutputStream(bytes).use { zip ->
+            zip.putNextEntry(ZipEntry("index.html"))
+            zip.write(page)
+            zip.putNextEntry(ZipEntry("media/"))
+            zip.putNextEntry(stored("media/video.mp4", media))
+            zip.write(media)
+            zip.putNextEntry(stored("media/audio/track.mp3", media.copyOf(10)))
+            zip.write(media, 0, 10)
+            extra?.let {
+                zip.putNextEntry(ZipEntry(it))
+                zip.write(it.toByteArray())
+            }
+        }
+        return bytes.toByteArray()
+    }
+
+    private fun stored(name: String, content: ByteArray) = ZipEntry(name).apply {
+        method = ZipEntry.STORED
+        size = content.size.toLong()
+        compressedSize = content.size.toLong()
+        crc = CRC32().also { it.update(content) }.value
+    }
+
+    private fun writeZip(name: String, bytes: ByteArray) = File(directory, name).apply { writeBytes(bytes) }
+
+    private fun indexOf(bytes: ByteArray, signature: ByteArray): Int =
+        (0..bytes.size - signature.size).first { matches(bytes, it, signature) }
+
+    private fun lastIndexOf(bytes: ByteArray, signature: ByteArray): Int =
+        (bytes.size - signature.size downTo 0).first { matches(bytes, it, signature) }
+
+    private fun matches(bytes: ByteArray, position: Int, signature: ByteArray) =
+        signature.indices.all { bytes[position + it] == signature[it] }
+}
@@ -24,6 +24,11 @@ export interface IDownloadTask {
    * your system.
    */
   location?: string;
+  /**
+   * Files with a higher priority are downloaded first, defaults to 0.
+   * Only available on Android.
+   */
+  priority?: number;
 }
 
 /**
@@ -64,7 +69,7 @@ export interface ITaskStatus {
    * 0:success
    * 1:pendding
    * 2:downloading
-   * -1:download manager error
+   * -1:download error
    * -2:md5 hash error
    * -3:source uri different with download uri when same id
    * -4:download complete but file not exists maybe deleted by user
@@ -94,6 +99,11 @@ export interface IFetchFileOption {
    * All fetching tasks.
    */
   files: IDownloadTask[];
+  /**
+   * Sent back with every `onFileStatus` event of this call, defaults to the
+   * id of the call. Only available on Android.
+   */
+  requestId?: string;
 }
 /**
  * response for query file state
@@ -110,6 +120,23 @@ export interface IFetchFileResponse {
    * Invalid tasks.
    */
   skip: IDownloadTask[];
+  /**
+   * IDs of the tasks not resolved within 30 seconds, their results are only
+   * delivered by the `onFileStatus` event. Only set on Android.
+   */
+  pending?: string[];
+}
+
+/**
+ * The result of one task of a `queryFile` or `fetchFile` call, sent as soon
+ * as it is known.
+ */
+export interface IFileStatusEvent {
+  /**
+   * The `requestId` of the call.
+   */
+  requestId: string;
+  result: FetchResultUnit;
 }
 
 export interface IDeleteFileOption {
@@ -131,6 +158,60 @@ interface IDeleteFileByIdOption {
 
 export type FetchResultUnit = IFileDownloadResult;
 
+export interface IServerMetricsOption {
+  /**
+   * Reset the metrics once returned.
+   */
+  reset?: boolean;
+}
+
+/**
+ * Request metrics of one route of the local server.
+ */
+export interface IRouteMetrics {
+  requests: number;
+  notModified: number;
+  partial: number;
+  notFound: number;
+  errors: number;
+  /**
+   * Length of the bodies served, in bytes.
+   */
+  bytes: number;
+  /**
+   * Time to build a response in ms, the body is sent after.
+   */
+  averageLatency: number;
+  latency: {
+    /**
+     * Upper bounds of the buckets in ms.
+     */
+    buckets: number[];
+    /**
+     * Requests per bucket, the last count is for slower requests.
+     */
+    counts: number[];
+  };
+}
+
+export interface IServerMetrics {
+  /**
+   * Metrics per route: `resource`, `bundle` and `other`.
+   */
+  routes: { [route: string]: IRouteMetrics };
+  indexHits: number;
+  indexMisses: number;
+  /**
+   * Resource lookups made before the index of downloaded files was loaded.
+   */
+  databaseLookups: number;
+  indexHitRate: number;
+  /**
+   * Share of requests answered with 304.
+   */
+  notModifiedRate: number;
+}
+
 interface IDeleteFileByIdResponse {
   /**
    * File IDs that skiped
@@ -173,6 +254,15 @@ export interface IUnZipOption {
    * location of root folder if not equal filename
    */
   location?: string;
+  /**
+   * 'extract' (default) writes the entries to the bundles directory.
+   * 'mount' serves the entries straight out of the zip, so the bundle is usable
+   * at once and takes no more space. Deleting the location unmounts it.
+   * Store media files uncompressed in a zip to mount: a range of a deflated
+   * entry is read by inflating the entry from its start.
+   * Only available on Android, iOS always extracts.
+   */
+  mode?: 'extract' | 'mount';
 }
 /**
  * response message
@@ -180,6 +270,23 @@ export interface IUnZipOption {
 export interface IUnZipResponse {
   result: string;
 }
+/**
+ * progress of an `unZip` call extracting a bundle
+ */
+export interface IUnZipProgress {
+  path: string;
+  location: string;
+  /**
+   * files written, of totalEntries
+   */
+  entries: number;
+  totalEntries: number;
+  /**
+   * uncompressed bytes written, of totalBytes
+   */
+  bytes: number;
+  totalBytes: number;
+}
 /**
  * list files of speacial directory
  * path support
@@ -198,6 +305,8 @@ export interface ILSResponse {
 
 export type FileDownloadListener = (response: IFileDownloadResult) => void;
 export type ErrorListener = (response: IErrorResponse) => void;
+export type FileStatusListener = (event: IFileStatusEvent) => void;
+export type UnZipProgressListener = (event: IUnZipProgress) => void;
 
 /**
  * Returned By `addListener`, you can remove the listener via this handler.
@@ -247,6 +356,14 @@ export interface ResourceLoaderPlugin {
     event: 'onComplete',
     func: FileDownloadListener,
   ): Promise<PluginListenerHandle> & PluginListenerHandle;
+  /**
+   * A listener for the result of every task of `queryFile` and `fetchFile`
+   * calls, as soon as it is known. Only available on Android.
+   */
+  addListener(
+    event: 'onFileStatus',
+    func: FileStatusListener,
+  ): Promise<PluginListenerHandle> & PluginListenerHandle;
   /**
    * A listener for tasks that failed.
    */
@@ -254,6 +371,14 @@ export interface ResourceLoaderPlugin {
     event: 'onError',
     func: ErrorListener,
   ): Promise<PluginListenerHandle> & PluginListenerHandle;
+  /**
+   * A listener for the progress of `unZip` calls extracting bundles.
+   * Only available on Android.
+   */
+  addListener(
+    event: 'onUnzipProgress',
+    func: UnZipProgressListener,
+  ): Promise<PluginListenerHandle> & PluginListenerHandle;
   /**
    * Remove all event listeners.
    */
@@ -270,4 +395,11 @@ export interface ResourceLoaderPlugin {
    * The root directory equals root directory of unzip
    */
   ls(directory: ILSOption): Promise<ILSResponse>;
+
+  /**
+   * Request metrics of the local server. Set `debug: true` in the plugin
+   * configuration to also log every request.
+   * Only available on Android, rejected as unimplemented on iOS.
+   */
+  getServerMetrics(options?: IServerMetricsOption): Promise<IServerMetrics>;
 }